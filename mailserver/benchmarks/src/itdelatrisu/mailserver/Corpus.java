@@ -0,0 +1,56 @@
+package itdelatrisu.mailserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sample messages for the benchmarks, loaded from {@code corpus/}.
+ * <p>
+ * The messages are anonymized copies of typical incoming mail (newsletters,
+ * a digest, an account confirmation, a receipt with attachments), all sent to
+ * {@link #RECIPIENT}, with links containing encodings of that address.
+ */
+public class Corpus {
+	/** The recipient of all sample messages. */
+	public static final String RECIPIENT = "alice.k7x2@example.org";
+
+	/** The registration site domain of the recipient. */
+	public static final String SITE_DOMAIN = "example.com";
+
+	/** This class should not be instantiated. */
+	private Corpus() {}
+
+	/** Returns the names of all sample messages. */
+	public static List<String> names() {
+		List<String> names = new ArrayList<String>();
+		for (String line : new String(read("corpus/index.txt"), StandardCharsets.UTF_8).split("\n")) {
+			if (!line.trim().isEmpty())
+				names.add(line.trim());
+		}
+		return names;
+	}
+
+	/** Returns the raw data of a sample message. */
+	public static byte[] load(String name) { return read("corpus/" + name); }
+
+	/** Reads a resource. */
+	private static byte[] read(String resource) {
+		try (InputStream in = Corpus.class.getClassLoader().getResourceAsStream(resource)) {
+			if (in == null)
+				throw new IllegalArgumentException(String.format("Missing corpus resource '%s'.", resource));
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buf = new byte[8192];
+			int len;
+			while ((len = in.read(buf)) != -1)
+				out.write(buf, 0, len);
+			return out.toByteArray();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
@@ -0,0 +1,36 @@
+package itdelatrisu.mailserver;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for computing the encodings of an email address.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class HashCheckerBenchmark {
+	@Param({ Corpus.RECIPIENT, "a@b.co" })
+	public String email;
+
+	@Benchmark
+	public List<HashChecker.NamedValue<String>> getEncodings() {
+		return HashChecker.getEncodings(email);
+	}
+
+	@Benchmark
+	public HashChecker.Encodings encode() {
+		return HashChecker.encode(email);
+	}
+}
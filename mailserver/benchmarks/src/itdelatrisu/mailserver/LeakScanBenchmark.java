@@ -0,0 +1,88 @@
+package itdelatrisu.mailserver;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for scanning URLs for leaked email addresses.
+ * <p>
+ * No database connection is needed: the database instance is never used to
+ * query, and the analyzer is created with outbound requests disabled.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class LeakScanBenchmark {
+	@Param({ "newsletter-retail.eml", "digest-news.eml" })
+	public String message;
+
+	private MailDB db;
+	private MailAnalyzer analyzer;
+	private MailDB.MailUser user;
+	private ParsedMessage parsed;
+	private EncodingMatcher matcher;
+
+	/** Request fields as received by /results: URL, top-level URL, referrer, POST body. */
+	private List<String[]> requests;
+
+	@Setup
+	public void setup() throws Exception {
+		db = new MailDB("com.mysql.jdbc.Driver", "jdbc:mysql://localhost:3306/benchmark", "", "");
+		analyzer = new MailAnalyzer(db, false);
+		user = db.new MailUser(1, Corpus.RECIPIENT, "Example", "https://" + Corpus.SITE_DOMAIN + "/signup", Corpus.SITE_DOMAIN, new Date(), 5, 0, 0);
+
+		// parse the message and extract links up front, so that only scanning is measured
+		parsed = new ParsedMessage(Corpus.load(message));
+		LinkExtractor extractor = parsed.getLinkExtractor();
+		matcher = HashChecker.getMatcher(Corpus.RECIPIENT);
+
+		// simulate crawler results: each link, with the previous link as referrer
+		requests = new ArrayList<String[]>();
+		String referrer = "";
+		for (LinkExtractor.Link link : extractor.getAllLinks()) {
+			requests.add(new String[] { link.url, "https://" + Corpus.SITE_DOMAIN + "/", referrer, "" });
+			referrer = link.url;
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		analyzer.shutdown();
+		db.close();
+	}
+
+	/** Runs the analyzer's scanning loops (leaks, tracking images, links to visit) over a parsed message. */
+	@Benchmark
+	public MailAnalyzer.Analysis analyze() {
+		return analyzer.analyze("news@" + Corpus.SITE_DOMAIN, user, parsed);
+	}
+
+	/** Scans request fields the way WebServer.findLeakedEmailAddress() does. */
+	@Benchmark
+	public int scanResults() {
+		int found = 0;
+		for (String[] request : requests) {
+			String[] inPostBody = matcher.matchDecoded(request[3]);
+			String[] inUrl = matcher.matchDecoded(request[0]);
+			String[] inReferrer = matcher.matchDecoded(request[2]);
+			if (inPostBody != null || inUrl != null || inReferrer != null)
+				found++;
+		}
+		return found;
+	}
+}
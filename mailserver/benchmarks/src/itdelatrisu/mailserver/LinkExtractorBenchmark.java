@@ -0,0 +1,38 @@
+package itdelatrisu.mailserver;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.util.SharedByteArrayInputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for extracting links from newsletter HTML.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class LinkExtractorBenchmark {
+	@Param({ "newsletter-retail.eml", "digest-news.eml", "confirmation.eml" })
+	public String message;
+
+	private String html;
+
+	@Setup
+	public void setup() throws Exception {
+		html = Utils.getHtmlFromMessage(Utils.toMimeMessage(new SharedByteArrayInputStream(Corpus.load(message))));
+	}
+
+	@Benchmark
+	public LinkExtractor newLinkExtractor() { return new LinkExtractor(html); }
+}
@@ -0,0 +1,47 @@
+package itdelatrisu.mailserver;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedByteArrayInputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for MIME parsing and HTML part extraction.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class MimeBenchmark {
+	@Param({ "newsletter-retail.eml", "digest-news.eml", "confirmation.eml", "order-receipt.eml" })
+	public String message;
+
+	private byte[] data;
+
+	@Setup
+	public void setup() { data = Corpus.load(message); }
+
+	@Benchmark
+	public MimeMessage toMimeMessage() throws MessagingException {
+		return Utils.toMimeMessage(new SharedByteArrayInputStream(data));
+	}
+
+	/** Parses the message and extracts its HTML part (the MIME tree caches decoded content, so it is parsed each time). */
+	@Benchmark
+	public String getHtmlFromMessage() throws MessagingException, IOException {
+		return Utils.getHtmlFromMessage(Utils.toMimeMessage(new SharedByteArrayInputStream(data)));
+	}
+}
@@ -0,0 +1,65 @@
+package itdelatrisu.mailserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for stripping attachments before storing a message.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class StorageBenchmark {
+	/** Output stream counting and discarding all bytes. */
+	private static class CountingOutputStream extends OutputStream {
+		private long count = 0;
+
+		@Override
+		public void write(int b) { count++; }
+
+		@Override
+		public void write(byte[] b, int off, int len) { count += len; }
+	}
+
+	@Param({ "order-receipt.eml", "newsletter-retail.eml" })
+	public String message;
+
+	private byte[] data;
+
+	@Setup
+	public void setup() { data = Corpus.load(message); }
+
+	@Benchmark
+	public MimeMessage stripAttachments() {
+		return MailStorage.stripAttachments(new ParsedMessage(data));
+	}
+
+	/** Strips attachments and serializes the result, as when storing a message. */
+	@Benchmark
+	public long stripAndWrite() throws IOException, MessagingException {
+		ParsedMessage parsed = new ParsedMessage(data);
+		CountingOutputStream out = new CountingOutputStream();
+		MimeMessage stripped = MailStorage.stripAttachments(parsed);
+		if (stripped != null)
+			stripped.writeTo(out);
+		else
+			parsed.writeTo(out);
+		return out.count;
+	}
+}
@@ -20,6 +20,33 @@ CREATE TABLE IF NOT EXISTS `inbox` (
 	`sender` VARCHAR(254) NOT NULL COMMENT 'mail sender',
 	`sent_date` DATETIME COMMENT 'mail sent date',
 	`subject` TEXT COMMENT 'mail subject',
-	`filename` VARCHAR(255) NOT NULL COMMENT 'file location',
+	`filename` VARCHAR(255) NOT NULL COMMENT 'mail store locator (or file name)',
 	PRIMARY KEY (`recipient`, `filename`)
 ) ENGINE=MyISAM;
+
+--
+-- Table structure for table `link_groups`
+--
+CREATE TABLE IF NOT EXISTS `link_groups` (
+	`id` INT(11) UNSIGNED NOT NULL AUTO_INCREMENT COMMENT 'unique auto-incrementing ID',
+	`sender_domain` VARCHAR(255) NOT NULL COMMENT 'mail sender domain',
+	`sender_address` VARCHAR(254) NOT NULL COMMENT 'mail sender',
+	`recipient_id` INT(11) UNSIGNED NOT NULL COMMENT 'mail recipient user ID',
+	`urls` MEDIUMTEXT NOT NULL COMMENT 'delimited list of URLs to visit',
+	`lease_token` BIGINT COMMENT 'token of the current lease',
+	`lease_expires` DATETIME COMMENT 'expiry time of the current lease',
+	PRIMARY KEY (`id`),
+	KEY (`lease_token`),
+	KEY `lease_expires` (`lease_expires`, `id`)
+) ENGINE=MyISAM;
+
+--
+-- Upgrading an existing `link_groups` table:
+-- ALTER TABLE `link_groups` ADD `lease_token` BIGINT, ADD `lease_expires` DATETIME, ADD KEY (`lease_token`), ADD KEY `lease_expires` (`lease_expires`, `id`);
+-- (or, if it already has the lease columns: ALTER TABLE `link_groups` ADD KEY `lease_expires` (`lease_expires`, `id`);)
+--
+
+--
+-- Upgrading an existing `leaked_emails` table (records carry unique IDs, so that a retried batch skips those already written):
+-- ALTER TABLE `leaked_emails` ADD `leak_id` BINARY(16) COMMENT 'unique record ID', ADD UNIQUE KEY (`leak_id`);
+--
@@ -0,0 +1,498 @@
+package itdelatrisu.mailserver;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Scans text (usually a URL) for encodings, both as-is and within its decoded forms.
+ * <p>
+ * The text is traversed once. Each character is fed through streaming
+ * decoders, and each resulting view is run through its own state of the
+ * matcher's automaton:
+ * <ul>
+ * <li>the raw text</li>
+ * <li>the text percent-decoded once, twice, and three times (nested redirect parameters)</li>
+ * <li>the text form-decoded once ({@code +} as a space)</li>
+ * <li>base64 and base64url runs within the fully percent-decoded text,
+ *     decoded (until a run turns out not to be text)</li>
+ * </ul>
+ * Decoded bytes are interpreted as UTF-8. Nothing is copied: a decoded view
+ * is the same as its input until the decoder first changes a character, so
+ * until then it is not run, and it then continues from its input's state.
+ * <p>
+ * Matches are reported by the kinds of view they were found in, and
+ * optionally by where they end in the text: a match in a decoded view ends
+ * at the character completing its last decoded character.
+ */
+class DecodingScanner {
+	/** View kinds (as bit flags). */
+	static final int RAW = 1, PERCENT = 2, FORM = 4, BASE64 = 8;
+
+	/** Number of percent-decoding levels. */
+	private static final int PERCENT_DECODING_LEVELS = 3;
+
+	/** A consumer of a character stream. */
+	private interface CharSink {
+		/** Consumes a character. */
+		void put(char c);
+
+		/** Ends the stream (or a segment of it). */
+		void end();
+	}
+
+	/** A view of the text, run through the automaton. */
+	private class View {
+		/** The view kind. */
+		private final int kind;
+
+		/** The view this one is the same as while inactive (or null if always active). */
+		private final View source;
+
+		/** Whether this view is run (i.e. differs from its source). */
+		private boolean active;
+
+		/** The automaton state, and the state before the last character. */
+		private int state = 0, prev = 0;
+
+		/** Constructor. */
+		private View(int kind, View source) {
+			this.kind = kind;
+			this.source = source;
+			this.active = (source == null);
+		}
+
+		/** Advances the automaton by one character. */
+		private void put(char c) {
+			prev = state;
+			state = matcher.step(state, c);
+			int[] out = matcher.getOutput(state);
+			if (out.length > 0) {
+				if (matched == null)
+					matched = new int[matcher.getEncodings().size()];
+				for (int i : out) {
+					matched[i] |= kind;
+					if (occurrences != null)
+						addOccurrence(i, kind);
+				}
+			}
+		}
+
+		/** Returns the state before the last character. */
+		private int getPrevState() { return active ? prev : source.getPrevState(); }
+	}
+
+	/** A decoder producing bytes, which are emitted as UTF-8 decoded characters. */
+	private abstract static class Decoder implements CharSink {
+		/** The view of the output. */
+		protected final View view;
+
+		/** The decoders consuming the output. */
+		private final CharSink[] next;
+
+		/** Whether to drop the rest of the output (until it ends) upon binary data. */
+		private final boolean textOnly;
+
+		/** Whether the output is being dropped. */
+		protected boolean dropping = false;
+
+		/** The code point being decoded. */
+		private int codePoint;
+
+		/** Number of continuation bytes still expected. */
+		private int remaining = 0;
+
+		/** Constructor. */
+		protected Decoder(View view, boolean textOnly, CharSink... next) {
+			this.view = view;
+			this.textOnly = textOnly;
+			this.next = next;
+		}
+
+		/** Emits a character. */
+		protected void emit(char c) {
+			flushBytes();
+			write(c);
+		}
+
+		/** Emits a byte. */
+		protected void emitByte(int b) {
+			if (remaining > 0) {
+				if ((b & 0xc0) == 0x80) {
+					codePoint = (codePoint << 6) | (b & 0x3f);
+					if (--remaining == 0) {
+						if (Character.isValidCodePoint(codePoint)) {
+							if (Character.isBmpCodePoint(codePoint))
+								write((char) codePoint);
+							else {
+								write(Character.highSurrogate(codePoint));
+								write(Character.lowSurrogate(codePoint));
+							}
+						} else
+							invalid();
+					}
+					return;
+				}
+				flushBytes();
+			}
+			if (b < 0x80)
+				write((char) b);
+			else if ((b & 0xe0) == 0xc0) {
+				codePoint = b & 0x1f;
+				remaining = 1;
+			} else if ((b & 0xf0) == 0xe0) {
+				codePoint = b & 0x0f;
+				remaining = 2;
+			} else if ((b & 0xf8) == 0xf0) {
+				codePoint = b & 0x07;
+				remaining = 3;
+			} else
+				invalid();
+		}
+
+		/** Emits a replacement character for an incomplete byte sequence, if any. */
+		protected void flushBytes() {
+			if (remaining > 0) {
+				remaining = 0;
+				invalid();
+			}
+		}
+
+		/** Handles an invalid byte sequence. */
+		private void invalid() {
+			if (textOnly)
+				dropping = true;
+			else
+				write('\uFFFD');
+		}
+
+		/** Ends the output. */
+		protected void endOutput() {
+			flushBytes();
+			dropping = false;
+			view.state = 0;  // matches can't span segments
+			for (CharSink sink : next)
+				sink.end();
+		}
+
+		/** Writes a character to the output. */
+		private void write(char c) {
+			if (textOnly && c < 0x20 && c != '\t' && c != '\n' && c != '\r')
+				dropping = true;
+			if (dropping)
+				return;
+			if (view.active)
+				view.put(c);
+			for (CharSink sink : next)
+				sink.put(c);
+		}
+	}
+
+	/** Percent-decoder (leaving invalid escapes as-is). */
+	private static class PercentDecoder extends Decoder {
+		/** Whether to decode {@code +} as a space. */
+		private final boolean plusAsSpace;
+
+		/** Number of characters of the current escape seen (0-2). */
+		private int pending = 0;
+
+		/** The first hexadecimal digit of the current escape. */
+		private char high;
+
+		/** The view of the input. */
+		private final View input;
+
+		/** The input view's state before the current escape (while the output view is inactive). */
+		private int mark;
+
+		/** Constructor. */
+		private PercentDecoder(boolean plusAsSpace, View input, View output, CharSink... next) {
+			super(output, false, next);
+			this.plusAsSpace = plusAsSpace;
+			this.input = input;
+		}
+
+		@Override
+		public void put(char c) {
+			if (pending == 0) {
+				if (c == '%') {
+					pending = 1;
+					if (!view.active)
+						mark = input.getPrevState();
+				} else if (plusAsSpace && c == '+') {
+					if (!view.active)
+						activate(input.getPrevState());
+					emit(' ');
+				} else
+					emit(c);
+			} else if (pending == 1) {
+				if (hexValue(c) >= 0) {
+					high = c;
+					pending = 2;
+				} else {
+					pending = 0;
+					emit('%');
+					put(c);
+				}
+			} else {
+				pending = 0;
+				int low = hexValue(c);
+				if (low >= 0) {
+					if (!view.active)
+						activate(mark);
+					emitByte((hexValue(high) << 4) | low);
+				} else {
+					emit('%');
+					emit(high);
+					put(c);
+				}
+			}
+		}
+
+		@Override
+		public void end() {
+			if (pending > 0)
+				emit('%');
+			if (pending > 1)
+				emit(high);
+			pending = 0;
+			endOutput();
+		}
+
+		/** Starts running the output view from the given state (the output now differs from the input). */
+		private void activate(int state) {
+			view.state = state;
+			view.active = true;
+		}
+
+		/** Returns the value of a hexadecimal digit, or -1 if not one. */
+		private static int hexValue(char c) {
+			if (c >= '0' && c <= '9')
+				return c - '0';
+			if (c >= 'a' && c <= 'f')
+				return c - 'a' + 10;
+			if (c >= 'A' && c <= 'F')
+				return c - 'A' + 10;
+			return -1;
+		}
+	}
+
+	/**
+	 * Base64 decoder for runs of the alphabet's characters (each run is
+	 * decoded separately, and any partial trailing group is dropped).
+	 */
+	private static class Base64Decoder extends Decoder {
+		/** Values of the standard and URL-safe alphabets' characters (-1 if none), by ASCII code. */
+		private static final byte[] STANDARD_VALUES = new byte[128], URL_SAFE_VALUES = new byte[128];
+		static {
+			String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789";
+			Arrays.fill(STANDARD_VALUES, (byte) -1);
+			Arrays.fill(URL_SAFE_VALUES, (byte) -1);
+			for (int i = 0; i < alphabet.length(); i++)
+				STANDARD_VALUES[alphabet.charAt(i)] = URL_SAFE_VALUES[alphabet.charAt(i)] = (byte) i;
+			STANDARD_VALUES['+'] = URL_SAFE_VALUES['-'] = 62;
+			STANDARD_VALUES['/'] = URL_SAFE_VALUES['_'] = 63;
+		}
+
+		/** The alphabet's character values. */
+		private final byte[] values;
+
+		/** Buffered bits, and their number. */
+		private int bits = 0, bitCount = 0;
+
+		/** Whether a run is in progress. */
+		private boolean inRun = false;
+
+		/** Constructor. */
+		private Base64Decoder(boolean urlSafe, View view) {
+			super(view, true);
+			this.values = urlSafe ? URL_SAFE_VALUES : STANDARD_VALUES;
+		}
+
+		@Override
+		public void put(char c) {
+			int value = (c < 128) ? values[c] : -1;
+			if (value < 0) {
+				end();
+				return;
+			}
+			inRun = true;
+			if (dropping)
+				return;
+			bits = (bits << 6) | value;
+			bitCount += 6;
+			if (bitCount >= 8) {
+				bitCount -= 8;
+				emitByte((bits >> bitCount) & 0xff);
+			}
+		}
+
+		@Override
+		public void end() {
+			if (inRun) {
+				inRun = false;
+				bits = bitCount = 0;
+				endOutput();
+			}
+		}
+	}
+
+	/** The matcher. */
+	private final EncodingMatcher matcher;
+
+	/** The kinds of view each encoding (by index) was matched in, or null if none were. */
+	private int[] matched;
+
+	/** The matches of each encoding (by index), as end offset and view kind (or null if not recorded). */
+	private long[][] occurrences;
+
+	/** The number of matches of each encoding. */
+	private int[] occurrenceCounts;
+
+	/** The end offset (in the text) of the character being scanned. */
+	private int position;
+
+	/** Creates a scanner using the given matcher. */
+	DecodingScanner(EncodingMatcher matcher) { this.matcher = matcher; }
+
+	/**
+	 * Returns the kinds of view (as bit flags) each encoding (by index) is
+	 * contained in, 0 if none, or null if no encodings are contained in any view.
+	 * @param s the text
+	 * @param stopAtFirst whether to stop after the first character producing a match
+	 * @param recordOffsets whether to record where matches end (see {@link #getEnds(int, int)})
+	 */
+	int[] scan(String s, boolean stopAtFirst, boolean recordOffsets) {
+		matched = null;
+		int size = matcher.getEncodings().size();
+		occurrences = recordOffsets ? new long[size][] : null;
+		occurrenceCounts = recordOffsets ? new int[size] : null;
+
+		// build the decoding pipeline (each percent-decoded view starts out the same as the one before)
+		View raw = new View(RAW, null);
+		View[] views = new View[PERCENT_DECODING_LEVELS];
+		for (int i = 0; i < views.length; i++)
+			views[i] = new View(PERCENT, (i == 0) ? raw : views[i - 1]);
+		CharSink base64 = new Base64Decoder(false, new View(BASE64, null)), base64Url = new Base64Decoder(true, new View(BASE64, null));
+		CharSink[] next = { base64, base64Url };
+		for (int i = views.length - 1; i >= 0; i--)
+			next = new CharSink[] { new PercentDecoder(false, (i == 0) ? raw : views[i - 1], views[i], next) };
+		CharSink percent = next[0];
+		CharSink form = new PercentDecoder(true, raw, new View(FORM, raw));
+
+		// the percent-decoders pass everything through until the first escape,
+		// so until then, feed the raw text directly to the base64 decoders
+		int start = s.length();
+		for (int i = 0, n = s.length(); i < n; i++) {
+			char c = s.charAt(i);
+			if (c == '%' || c == '+') {
+				start = i;
+				break;
+			}
+		}
+
+		for (int i = 0, n = s.length(); i < n; i++) {
+			char c = s.charAt(i);
+			position = i + 1;
+			raw.put(c);
+			if (i < start) {
+				base64.put(c);
+				base64Url.put(c);
+			} else {
+				percent.put(c);
+				form.put(c);
+			}
+			if (stopAtFirst && matched != null)
+				return matched;
+		}
+		position = s.length();
+		if (start < s.length()) {
+			percent.end();
+			form.end();
+		} else {
+			base64.end();
+			base64Url.end();
+		}
+		return matched;
+	}
+
+	/**
+	 * Returns the distinct end offsets (in the text, in ascending order) of an
+	 * encoding's matches in views of the given kinds, as recorded by the last scan.
+	 */
+	int[] getEnds(int i, int kinds) {
+		int count = (occurrenceCounts != null) ? occurrenceCounts[i] : 0;
+		int[] ends = new int[count];
+		int n = 0;
+		for (int j = 0; j < count; j++) {
+			long occurrence = occurrences[i][j];
+			if ((occurrence & kinds) != 0)
+				ends[n++] = (int) (occurrence >>> 32);
+		}
+		Arrays.sort(ends, 0, n);
+		int distinct = 0;
+		for (int j = 0; j < n; j++) {
+			if (distinct == 0 || ends[j] != ends[distinct - 1])
+				ends[distinct++] = ends[j];
+		}
+		return Arrays.copyOf(ends, distinct);
+	}
+
+	/** Records a match of an encoding ending at the current position. */
+	private void addOccurrence(int i, int kind) {
+		long[] list = occurrences[i];
+		int count = occurrenceCounts[i];
+		if (list == null)
+			list = occurrences[i] = new long[4];
+		else if (count == list.length)
+			list = occurrences[i] = Arrays.copyOf(list, count * 2);
+		list[count] = ((long) position << 32) | kind;
+		occurrenceCounts[i] = count + 1;
+	}
+
+	/**
+	 * Returns whether decoding the value once, as in a view of the given kind,
+	 * changes it into the target.
+	 */
+	static boolean decodesTo(String value, String target, int kind) {
+		if (kind == BASE64) {
+			for (Base64.Decoder decoder : new Base64.Decoder[] { Base64.getDecoder(), Base64.getUrlDecoder() }) {
+				try {
+					if (new String(decoder.decode(value), StandardCharsets.UTF_8).equals(target))
+						return true;
+				} catch (IllegalArgumentException e) {}
+			}
+			return false;
+		}
+		if (kind != PERCENT && kind != FORM)
+			return false;
+
+		// percent-decode (leaving invalid escapes as-is)
+		boolean changed = false;
+		StringBuilder sb = new StringBuilder(value.length());
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		for (int i = 0, n = value.length(); i < n; i++) {
+			char c = value.charAt(i);
+			int high, low;
+			if (c == '%' && i + 2 < n && (high = PercentDecoder.hexValue(value.charAt(i + 1))) >= 0 &&
+			    (low = PercentDecoder.hexValue(value.charAt(i + 2))) >= 0) {
+				bytes.write((high << 4) | low);
+				i += 2;
+				changed = true;
+				continue;
+			}
+			if (bytes.size() > 0) {
+				sb.append(new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+				bytes.reset();
+			}
+			if (c == '+' && kind == FORM) {
+				c = ' ';
+				changed = true;
+			}
+			sb.append(c);
+		}
+		sb.append(new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+		return changed && sb.toString().equals(target);
+	}
+}
@@ -0,0 +1,232 @@
+package itdelatrisu.mailserver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Reverse index from encoded values (see {@link HashChecker#getEncodings(String)})
+ * to the user they were derived from.
+ * <p>
+ * Values are stored as 64-bit fingerprints in an open-addressing table, so
+ * lookups are O(1) and entries are not boxed.
+ * <p>
+ * Encodings derived from 32-bit hashes are not indexed: among many users,
+ * unrelated numbers and tokens would match them, so they are only checked
+ * against a known recipient.
+ */
+public class EncodingIndex {
+	/** Minimum length of an indexed value (shorter values are too ambiguous). */
+	private static final int MIN_VALUE_LENGTH = 8;
+
+	/** Initial table capacity (must be a power of 2). */
+	private static final int INITIAL_CAPACITY = 1 << 16;
+
+	/** Maximum load factor before the table is resized. */
+	private static final float MAX_LOAD_FACTOR = 0.5f;
+
+	/** Represents a value found in a text body. */
+	public static class Match {
+		/** The user ID. */
+		public final int userId;
+
+		/** The encoding name. */
+		public final String encoding;
+
+		/** The matched value. */
+		public final String value;
+
+		/** Creates a new match. */
+		public Match(int userId, String encoding, String value) {
+			this.userId = userId;
+			this.encoding = encoding;
+			this.value = value;
+		}
+	}
+
+	/** Fingerprints (0 = empty slot). */
+	private long[] keys;
+
+	/** Entries: user ID (high 32 bits) and encoding name index (low 32 bits). */
+	private long[] entries;
+
+	/** Number of occupied slots. */
+	private int size;
+
+	/** Encoding names, by index. */
+	private final List<String> names = new ArrayList<String>();
+
+	/** Encoding name -> index. */
+	private final Map<String, Integer> nameIndices = new HashMap<String, Integer>();
+
+	/** Table lock. */
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/** Creates an empty index. */
+	public EncodingIndex() {
+		this.keys = new long[INITIAL_CAPACITY];
+		this.entries = new long[INITIAL_CAPACITY];
+	}
+
+	/** Returns the number of indexed values. */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return size;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/** Indexes the encodings of the given user's email address that can identify the user. */
+	public void add(int userId, String email) {
+		HashChecker.Encodings encodings = HashChecker.encode(email);
+		lock.writeLock().lock();
+		try {
+			for (int i = 0, n = encodings.size(); i < n; i++) {
+				String value = encodings.getValue(i), name = encodings.getName(i);
+				if (value.length() < MIN_VALUE_LENGTH || HashChecker.isShortHash(name))
+					continue;
+				Integer nameIndex = nameIndices.get(name);
+				if (nameIndex == null) {
+					nameIndex = names.size();
+					names.add(name);
+					nameIndices.put(name, nameIndex);
+				}
+				put(fingerprint(value, 0, value.length()), ((long) userId << 32) | nameIndex);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/** Returns the match for the given region of a string, or null if not indexed. */
+	public Match lookup(String s, int start, int end) {
+		if (end - start < MIN_VALUE_LENGTH)
+			return null;
+		long key = fingerprint(s, start, end);
+		lock.readLock().lock();
+		try {
+			int mask = keys.length - 1;
+			for (int i = (int) mix(key) & mask; keys[i] != 0; i = (i + 1) & mask) {
+				if (keys[i] == key) {
+					long entry = entries[i];
+					return new Match((int) (entry >>> 32), names.get((int) entry), s.substring(start, end));
+				}
+			}
+			return null;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns all indexed values found as tokens in the given text.
+	 * <p>
+	 * Tokens are maximal runs of URL-safe characters, along with the
+	 * alphanumeric runs within them (e.g. a hash embedded in an ID).
+	 */
+	public List<Match> find(String s) {
+		if (s == null || s.length() < MIN_VALUE_LENGTH)
+			return Collections.emptyList();
+		List<Match> list = new ArrayList<Match>();
+		int n = s.length(), tokenStart = -1, runStart = -1;
+		boolean split = false;
+		for (int i = 0; i <= n; i++) {
+			char c = (i < n) ? s.charAt(i) : '\0';
+			boolean alnum = isAlphanumeric(c);
+			boolean tokenChar = alnum || isTokenSymbol(c);
+
+			// end of an alphanumeric run within a token
+			if (!alnum && runStart != -1) {
+				if (tokenChar || tokenStart != runStart)
+					split = true;
+				if (split) {
+					Match m = lookup(s, runStart, i);
+					if (m != null)
+						list.add(m);
+				}
+				runStart = -1;
+			}
+			if (alnum && runStart == -1)
+				runStart = i;
+
+			// end of a token
+			if (!tokenChar && tokenStart != -1) {
+				Match m = lookup(s, tokenStart, i);
+				if (m != null)
+					list.add(m);
+				tokenStart = -1;
+				split = false;
+			}
+			if (tokenChar && tokenStart == -1)
+				tokenStart = i;
+		}
+		return list;
+	}
+
+	/** Inserts or replaces an entry. */
+	private void put(long key, long entry) {
+		if (size + 1 > keys.length * MAX_LOAD_FACTOR)
+			resize(keys.length * 2);
+		int mask = keys.length - 1;
+		int i = (int) mix(key) & mask;
+		while (keys[i] != 0 && keys[i] != key)
+			i = (i + 1) & mask;
+		if (keys[i] == 0)
+			size++;
+		keys[i] = key;
+		entries[i] = entry;
+	}
+
+	/** Resizes the table. */
+	private void resize(int capacity) {
+		long[] oldKeys = keys, oldEntries = entries;
+		keys = new long[capacity];
+		entries = new long[capacity];
+		int mask = capacity - 1;
+		for (int j = 0; j < oldKeys.length; j++) {
+			if (oldKeys[j] == 0)
+				continue;
+			int i = (int) mix(oldKeys[j]) & mask;
+			while (keys[i] != 0)
+				i = (i + 1) & mask;
+			keys[i] = oldKeys[j];
+			entries[i] = oldEntries[j];
+		}
+	}
+
+	/** Returns the 64-bit fingerprint (FNV-1a) of a region of a string (never 0). */
+	private static long fingerprint(String s, int start, int end) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = start; i < end; i++) {
+			h ^= s.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return (h == 0) ? 1 : h;
+	}
+
+	/** Scrambles a fingerprint for use as a table index (MurmurHash3 finalizer). */
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/** Returns whether the character is an ASCII letter or digit. */
+	private static boolean isAlphanumeric(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+	}
+
+	/** Returns whether the character is a non-alphanumeric character that can appear in an encoded value. */
+	private static boolean isTokenSymbol(char c) {
+		return c == '@' || c == '.' || c == '%' || c == '_' || c == '-' || c == '+' || c == '~';
+	}
+}
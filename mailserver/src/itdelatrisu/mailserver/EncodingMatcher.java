@@ -0,0 +1,390 @@
+package itdelatrisu.mailserver;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * Multi-pattern matcher for a set of encodings (Aho-Corasick automaton).
+ * <p>
+ * Built once per encoding set, and finds every encoding contained in a text
+ * body in a single pass over its characters.
+ */
+public class EncodingMatcher {
+	/** Number of directly-indexed root transitions. */
+	private static final int ROOT_TABLE_SIZE = 128;
+
+	/** The encodings, in their original order. */
+	private final List<HashChecker.NamedValue<String>> encodings;
+
+	/** Start offset of each state's transitions in the edge arrays (length = states + 1). */
+	private final int[] edgeStart;
+
+	/** Transition characters (sorted within each state). */
+	private final char[] edgeChar;
+
+	/** Transition targets. */
+	private final int[] edgeTarget;
+
+	/** Direct root transitions for ASCII characters (0 if none). */
+	private final int[] rootNext;
+
+	/** Failure links. */
+	private final int[] fail;
+
+	/** Encoding indices matched upon reaching each state (including via failure links). */
+	private final int[][] output;
+
+	/** Indices of encodings with empty values (which match everything). */
+	private final int[] emptyOutput;
+
+	/** Creates a matcher for the given encodings. */
+	public EncodingMatcher(List<HashChecker.NamedValue<String>> encodings) {
+		this.encodings = Collections.unmodifiableList(new ArrayList<HashChecker.NamedValue<String>>(encodings));
+
+		// build the trie
+		List<int[]> children = new ArrayList<int[]>();  // per state: [char, target, char, target, ...]
+		List<int[]> outputs = new ArrayList<int[]>();
+		children.add(new int[0]);
+		outputs.add(new int[0]);
+		int[] empty = new int[0];
+		for (int i = 0, n = this.encodings.size(); i < n; i++) {
+			String value = this.encodings.get(i).getValue();
+			if (value.isEmpty()) {
+				empty = append(empty, i);
+				continue;
+			}
+			int state = 0;
+			for (int j = 0; j < value.length(); j++) {
+				char c = value.charAt(j);
+				int next = findChild(children.get(state), c);
+				if (next == -1) {
+					next = children.size();
+					children.add(new int[0]);
+					outputs.add(new int[0]);
+					children.set(state, append(append(children.get(state), c), next));
+				}
+				state = next;
+			}
+			outputs.set(state, append(outputs.get(state), i));
+		}
+		this.emptyOutput = empty;
+
+		// flatten transitions (sorted by character)
+		int states = children.size();
+		this.edgeStart = new int[states + 1];
+		int edges = 0;
+		for (int s = 0; s < states; s++) {
+			edgeStart[s] = edges;
+			edges += children.get(s).length / 2;
+		}
+		edgeStart[states] = edges;
+		this.edgeChar = new char[edges];
+		this.edgeTarget = new int[edges];
+		for (int s = 0; s < states; s++) {
+			int[] ch = children.get(s);
+			long[] sorted = new long[ch.length / 2];
+			for (int k = 0; k < sorted.length; k++)
+				sorted[k] = ((long) ch[k * 2] << 32) | ch[k * 2 + 1];
+			Arrays.sort(sorted);
+			for (int k = 0; k < sorted.length; k++) {
+				edgeChar[edgeStart[s] + k] = (char) (sorted[k] >>> 32);
+				edgeTarget[edgeStart[s] + k] = (int) sorted[k];
+			}
+		}
+		this.rootNext = new int[ROOT_TABLE_SIZE];
+		for (int e = edgeStart[0]; e < edgeStart[1]; e++) {
+			if (edgeChar[e] < ROOT_TABLE_SIZE)
+				rootNext[edgeChar[e]] = edgeTarget[e];
+		}
+
+		// compute failure links (breadth-first) and merge outputs
+		this.fail = new int[states];
+		this.output = new int[states][];
+		output[0] = outputs.get(0);
+		Queue<Integer> queue = new ArrayDeque<Integer>();
+		for (int e = edgeStart[0]; e < edgeStart[1]; e++) {
+			int t = edgeTarget[e];
+			fail[t] = 0;
+			output[t] = outputs.get(t);
+			queue.add(t);
+		}
+		while (!queue.isEmpty()) {
+			int s = queue.poll();
+			for (int e = edgeStart[s]; e < edgeStart[s + 1]; e++) {
+				char c = edgeChar[e];
+				int t = edgeTarget[e];
+				int f = fail[s];
+				int next;
+				while ((next = transition(f, c)) == -1 && f != 0)
+					f = fail[f];
+				fail[t] = (next == -1 || next == t) ? 0 : next;
+				output[t] = merge(outputs.get(t), output[fail[t]]);
+				queue.add(t);
+			}
+		}
+	}
+
+	/** Returns the encodings this matcher was built from. */
+	public List<HashChecker.NamedValue<String>> getEncodings() { return encodings; }
+
+	/** Returns whether the text contains any of the encodings. */
+	public boolean matchesAny(String s) {
+		if (s == null)
+			return false;
+		if (emptyOutput.length > 0)
+			return true;
+		int state = 0;
+		for (int i = 0, n = s.length(); i < n; i++) {
+			state = step(state, s.charAt(i));
+			if (output[state].length > 0)
+				return true;
+		}
+		return false;
+	}
+
+	/** Returns all encodings contained in the text, in their original order. */
+	public List<HashChecker.NamedValue<String>> findAll(String s) { return toList(match(s)); }
+
+	/**
+	 * Returns a flag for each encoding (by index) indicating whether it is
+	 * contained in the text, or null if none are.
+	 */
+	public boolean[] match(String s) {
+		if (s == null)
+			return null;
+		boolean[] matched = null;
+		if (emptyOutput.length > 0) {
+			matched = new boolean[encodings.size()];
+			for (int i : emptyOutput)
+				matched[i] = true;
+		}
+		int state = 0;
+		for (int i = 0, n = s.length(); i < n; i++) {
+			state = step(state, s.charAt(i));
+			int[] out = output[state];
+			if (out.length > 0) {
+				if (matched == null)
+					matched = new boolean[encodings.size()];
+				for (int j : out)
+					matched[j] = true;
+			}
+		}
+		return matched;
+	}
+
+	/**
+	 * Returns whether the text, or any of its decoded forms (see
+	 * {@link DecodingScanner}), contains any of the encodings.
+	 */
+	public boolean matchesAnyDecoded(String s) {
+		if (s == null)
+			return false;
+		if (emptyOutput.length > 0)
+			return true;
+		return new DecodingScanner(this).scan(s, true, false) != null;
+	}
+
+	/**
+	 * Returns all encodings contained in the text or any of its decoded forms,
+	 * in their original order, named as in {@link #matchDecoded(String)}.
+	 */
+	public List<HashChecker.NamedValue<String>> findAllDecoded(String s) {
+		String[] names = matchDecoded(s);
+		if (names == null)
+			return Collections.emptyList();
+		List<HashChecker.NamedValue<String>> list = new ArrayList<HashChecker.NamedValue<String>>();
+		for (int i = 0; i < names.length; i++) {
+			if (names[i] != null)
+				list.add(new HashChecker.NamedValue<String>(names[i], encodings.get(i).getValue()));
+		}
+		return list;
+	}
+
+	/**
+	 * Returns the name under which each encoding (by index) is contained in
+	 * the text or any of its decoded forms (see {@link DecodingScanner}), null
+	 * for encodings not contained, or null if none are.
+	 * <p>
+	 * An encoding only found in a decoded form is named with a suffix for the
+	 * form (e.g. {@code raw[pct]}), unless it is just the decoded value of
+	 * another encoding found (e.g. {@code raw} within {@code urlencoded}), in
+	 * which case it is left out.
+	 */
+	public String[] matchDecoded(String s) { return matchDecoded(s, null); }
+
+	/**
+	 * Returns the name under which each encoding (by index) is contained in
+	 * the text or any of its decoded forms, as in {@link #matchDecoded(String)}.
+	 * @param s the text
+	 * @param ends if non-null, set to the end offsets (in the text) of each
+	 *             named encoding's occurrences in the form it is named after
+	 */
+	public String[] matchDecoded(String s, int[][] ends) {
+		if (s == null)
+			return null;
+		DecodingScanner scanner = new DecodingScanner(this);
+		int[] views = scanner.scan(s, false, ends != null);
+		String[] names = null;
+		if (views != null) {
+			names = new String[encodings.size()];
+			for (int i = 0; i < views.length; i++) {
+				if (views[i] == 0)
+					continue;
+				String name = encodings.get(i).getName();
+				int kind;
+				if ((views[i] & DecodingScanner.RAW) != 0) {
+					names[i] = name;
+					kind = DecodingScanner.RAW;
+				} else if (isDecodedValue(i, views))
+					continue;
+				else if ((views[i] & DecodingScanner.PERCENT) != 0) {
+					names[i] = name + "[pct]";
+					kind = DecodingScanner.PERCENT;
+				} else if ((views[i] & DecodingScanner.FORM) != 0) {
+					names[i] = name + "[form]";
+					kind = DecodingScanner.FORM;
+				} else {
+					names[i] = name + "[b64]";
+					kind = DecodingScanner.BASE64;
+				}
+				if (ends != null)
+					ends[i] = scanner.getEnds(i, kind);
+			}
+		}
+		if (emptyOutput.length > 0) {
+			if (names == null)
+				names = new String[encodings.size()];
+			for (int i : emptyOutput) {
+				names[i] = encodings.get(i).getName();
+				if (ends != null)
+					ends[i] = new int[0];
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * Returns a flag for each encoding (by index) indicating whether the text,
+	 * or any of its decoded forms, contains either the encoding or its decoded
+	 * value (e.g. {@code urlencoded} as {@code raw}), or null if none do.
+	 */
+	public boolean[] matchAnyForm(String s) {
+		if (s == null)
+			return null;
+		int[] views = new DecodingScanner(this).scan(s, false, false);
+		if (views == null && emptyOutput.length == 0)
+			return null;
+		boolean[] matched = new boolean[encodings.size()];
+		for (int i : emptyOutput)
+			matched[i] = true;
+		if (views != null) {
+			for (int i = 0; i < views.length; i++) {
+				if (views[i] != 0) {
+					matched[i] = true;
+					continue;
+				}
+				String value = encodings.get(i).getValue();
+				if (value.indexOf('%') == -1 && value.indexOf('+') == -1)
+					continue;
+				for (int j = 0; j < views.length && !matched[i]; j++) {
+					if (views[j] != 0 && DecodingScanner.decodesTo(value, encodings.get(j).getValue(), DecodingScanner.FORM))
+						matched[i] = true;
+				}
+			}
+		}
+		return matched;
+	}
+
+	/** Returns whether an encoding is the decoded value (in a view it was found in) of another encoding found. */
+	private boolean isDecodedValue(int i, int[] views) {
+		String value = encodings.get(i).getValue();
+		for (int j = 0; j < views.length; j++) {
+			if (j == i || views[j] == 0)
+				continue;
+			String other = encodings.get(j).getValue();
+			for (int kind = DecodingScanner.PERCENT; kind <= DecodingScanner.BASE64; kind <<= 1) {
+				if ((views[i] & kind) != 0 && DecodingScanner.decodesTo(other, value, kind))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/** Returns the encodings flagged in the array (which may be null), in their original order. */
+	private List<HashChecker.NamedValue<String>> toList(boolean[] matched) {
+		if (matched == null)
+			return Collections.emptyList();
+		List<HashChecker.NamedValue<String>> list = new ArrayList<HashChecker.NamedValue<String>>();
+		for (int i = 0; i < matched.length; i++) {
+			if (matched[i])
+				list.add(encodings.get(i));
+		}
+		return list;
+	}
+
+	/** Returns the encoding indices matched upon reaching the given state. */
+	int[] getOutput(int state) { return output[state]; }
+
+	/** Advances the automaton from the given state by one character. */
+	int step(int state, char c) {
+		while (true) {
+			int next = transition(state, c);
+			if (next != -1)
+				return next;
+			if (state == 0)
+				return 0;
+			state = fail[state];
+		}
+	}
+
+	/** Returns the trie transition from a state on a character, or -1 if none. */
+	private int transition(int state, char c) {
+		if (state == 0 && c < ROOT_TABLE_SIZE) {
+			int next = rootNext[c];
+			return (next == 0) ? -1 : next;
+		}
+		int lo = edgeStart[state], hi = edgeStart[state + 1] - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			char m = edgeChar[mid];
+			if (m < c)
+				lo = mid + 1;
+			else if (m > c)
+				hi = mid - 1;
+			else
+				return edgeTarget[mid];
+		}
+		return -1;
+	}
+
+	/** Returns the child of a trie node under construction, or -1 if none. */
+	private static int findChild(int[] children, char c) {
+		for (int i = 0; i < children.length; i += 2) {
+			if (children[i] == c)
+				return children[i + 1];
+		}
+		return -1;
+	}
+
+	/** Returns a copy of the array with the value appended. */
+	private static int[] append(int[] a, int value) {
+		int[] b = Arrays.copyOf(a, a.length + 1);
+		b[a.length] = value;
+		return b;
+	}
+
+	/** Returns the concatenation of two arrays. */
+	private static int[] merge(int[] a, int[] b) {
+		if (b.length == 0)
+			return a;
+		if (a.length == 0)
+			return b;
+		int[] c = Arrays.copyOf(a, a.length + b.length);
+		System.arraycopy(b, 0, c, a.length, b.length);
+		return c;
+	}
+}
@@ -5,12 +5,22 @@ import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.Function;
 import java.util.zip.Adler32;
 import java.util.zip.CRC32;
 
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
 import com.sangupta.murmur.Murmur1;
 import com.sangupta.murmur.Murmur2;
 import com.sangupta.murmur.Murmur3;
@@ -19,6 +29,18 @@ import com.sangupta.murmur.Murmur3;
  * Utility for checking for hashed strings within a text body.
  */
 public class HashChecker {
+	/** Maximum number of strings to keep precomputed matchers for. */
+	private static final int MATCHER_CACHE_SIZE = 10000;
+
+	/** Cache of precomputed matchers: string -> matcher(encodings). */
+	private static final LoadingCache<String, EncodingMatcher> matcherCache = CacheBuilder.newBuilder()
+		.maximumSize(MATCHER_CACHE_SIZE)
+		.recordStats()
+		.build(new CacheLoader<String, EncodingMatcher>() {
+			@Override
+			public EncodingMatcher load(String s) { return new EncodingMatcher(getEncodings(s)); }
+		});
+
 	/** Represents a named value. */
 	public static class NamedValue<T> {
 		/** The name of the value. */
@@ -40,79 +62,332 @@ public class HashChecker {
 		public T getValue() { return value; }
 	}
 
-	/** Returns a list of encodings (mostly hashes) of the given string. */
-	public static List<NamedValue<String>> getEncodings(String s) {
-		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
-		List<NamedValue<String>> list = new ArrayList<NamedValue<String>>();
+	/** The encodings of a string, stored in parallel arrays (see {@link HashChecker#encode(String)}). */
+	public static class Encodings {
+		/** The encoding names (shared by all instances). */
+		private final String[] names;
 
-		// non-hashes
-		list.add(new NamedValue<String>("raw", s));
-		try {
-			list.add(new NamedValue<String>("urlencoded", URLEncoder.encode(s, "UTF-8")));
-		} catch (UnsupportedEncodingException e) {}
-		list.add(new NamedValue<String>("base64", Base64.getUrlEncoder().withoutPadding().encodeToString(bytes)));
+		/** The encoded values. */
+		private final String[] values;
 
-		// common hashes
-		try {
-			list.add(new NamedValue<String>("md5", toHex(MessageDigest.getInstance("MD5").digest(bytes))));
-		} catch (NoSuchAlgorithmException e) {}
-		try {
-			list.add(new NamedValue<String>("sha1", toHex(MessageDigest.getInstance("SHA-1").digest(bytes))));
-		} catch (NoSuchAlgorithmException e) {}
-		try {
-			list.add(new NamedValue<String>("sha224", toHex(MessageDigest.getInstance("SHA-224").digest(bytes))));
-		} catch (NoSuchAlgorithmException e) {}
-		try {
-			list.add(new NamedValue<String>("sha256", toHex(MessageDigest.getInstance("SHA-256").digest(bytes))));
-		} catch (NoSuchAlgorithmException e) {}
+		/** Constructor. */
+		private Encodings(String[] names, String[] values) {
+			this.names = names;
+			this.values = values;
+		}
+
+		/** Returns the number of encodings. */
+		public int size() { return values.length; }
+
+		/** Returns the name of the i-th encoding. */
+		public String getName(int i) { return names[i]; }
+
+		/** Returns the value of the i-th encoding. */
+		public String getValue(int i) { return values[i]; }
+
+		/** Returns a list view of the encodings. */
+		public List<NamedValue<String>> asList() {
+			return new AbstractList<NamedValue<String>>() {
+				@Override
+				public NamedValue<String> get(int i) { return new NamedValue<String>(names[i], values[i]); }
+
+				@Override
+				public int size() { return values.length; }
+			};
+		}
+	}
+
+	/** A step in the derivation of an encoding. */
+	private static class Step {
+		/** The transformation. */
+		private final Function<Object, Object> function;
+
+		/**
+		 * Whether the step produces a variant of its input (e.g. lowercased),
+		 * whose derived encodings are dropped if it is unchanged.
+		 */
+		private final boolean variant;
+
+		/** Whether the step produces a 32-bit hash (too short to tell users apart). */
+		private final boolean shortHash;
+
+		/** Constructor. */
+		private Step(Function<Object, Object> function, boolean variant) {
+			this(function, variant, false);
+		}
+
+		/** Constructor. */
+		private Step(Function<Object, Object> function, boolean variant, boolean shortHash) {
+			this.function = function;
+			this.variant = variant;
+			this.shortHash = shortHash;
+		}
+	}
+
+	/** A node in the derivation tree. */
+	private static class Node {
+		/** The step producing this node's value from its parent's (null for the root). */
+		private final Step step;
+
+		/** The child nodes. */
+		private final List<Node> children = new ArrayList<Node>();
+
+		/** The encoding index, or -1 if this node's value is not an encoding. */
+		private int index = -1;
+
+		/** Constructor. */
+		private Node(Step step) { this.step = step; }
+	}
+
+	/** Base64 encoder for the "base64" encodings. */
+	private static final Base64.Encoder BASE64_ENCODER = Base64.getUrlEncoder().withoutPadding();
+
+	/** Hexadecimal digits. */
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray(), HEX_DIGITS_UPPER = "0123456789ABCDEF".toCharArray();
+
+	// string -> string
+	private static final Step
+		URLENCODE = new Step(o -> urlEncode((String) o), false),
+		LOWER = new Step(o -> ((String) o).trim().toLowerCase(Locale.ROOT), true),
+		LOCAL = new Step(o -> { String t = (String) o; int i = t.lastIndexOf('@'); return (i < 0) ? t : t.substring(0, i); }, true),
+		UTF8 = new Step(o -> ((String) o).getBytes(StandardCharsets.UTF_8), false);
+
+	// byte[] -> byte[]
+	private static final Step
+		MD5 = digest("MD5"), SHA1 = digest("SHA-1"), SHA224 = digest("SHA-224"),
+		SHA256 = digest("SHA-256"), SHA384 = digest("SHA-384"), SHA512 = digest("SHA-512");
+
+	// byte[] -> string
+	private static final Step
+		HEX = new Step(o -> toHex((byte[]) o, HEX_DIGITS), false),
+		HEX_UPPER = new Step(o -> toHex((byte[]) o, HEX_DIGITS_UPPER), false),
+		BASE64 = new Step(o -> BASE64_ENCODER.encodeToString((byte[]) o), false);
+
+	// byte[] -> long (or long[])
+	private static final Step
+		CRC = new Step(o -> { CRC32 c = new CRC32(); c.update((byte[]) o); return c.getValue(); }, false, true),
+		ADLER = new Step(o -> { Adler32 c = new Adler32(); c.update((byte[]) o); return c.getValue(); }, false, true),
+		MMH1 = new Step(o -> Murmur1.hash((byte[]) o, ((byte[]) o).length, 0), false, true),
+		MMH2 = new Step(o -> Murmur2.hash((byte[]) o, ((byte[]) o).length, 0), false, true),
+		MMH2_64 = new Step(o -> Murmur2.hash64((byte[]) o, ((byte[]) o).length, 0), false),
+		MMH3_32 = new Step(o -> Murmur3.hash_x86_32((byte[]) o, ((byte[]) o).length, 0), false, true),
+		MMH3_128 = new Step(o -> Murmur3.hash_x64_128((byte[]) o, ((byte[]) o).length, 0), false),
+		FIRST = new Step(o -> ((long[]) o)[0], false),
+		SECOND = new Step(o -> ((long[]) o)[1], false);
+
+	// long -> string
+	private static final Step
+		DEC = new Step(o -> Long.toString((Long) o), false),
+		LONG_HEX = new Step(o -> Long.toHexString((Long) o), false);
+
+	/** Root of the derivation tree (the input string). */
+	private static final Node ROOT = new Node(null);
+
+	/** Encoding names, by index. */
+	private static final List<String> encodingNames = new ArrayList<String>();
+
+	/** Names of encodings derived from a 32-bit hash. */
+	private static final Set<String> shortHashNames = new HashSet<String>();
+
+	/** Encoding names (as an array shared by all {@link Encodings}). */
+	private static final String[] ENCODING_NAMES;
+
+	// encoding registry: names must not change (they are stored with each leak)
+	static {
+		register("raw");
+		register("urlencoded", URLENCODE);
+		register("base64", UTF8, BASE64);
+		register("md5", UTF8, MD5, HEX);
+		register("sha1", UTF8, SHA1, HEX);
+		register("sha224", UTF8, SHA224, HEX);
+		register("sha256", UTF8, SHA256, HEX);
+		register("sha384", UTF8, SHA384, HEX);
+		register("sha512", UTF8, SHA512, HEX);
+		register("crc32", UTF8, CRC, DEC);
+		register("crc32-hex", UTF8, CRC, LONG_HEX);
+		register("adler32", UTF8, ADLER, DEC);
+		register("adler32-hex", UTF8, ADLER, LONG_HEX);
+		register("mmh1", UTF8, MMH1, DEC);
+		register("mmh1-hex", UTF8, MMH1, LONG_HEX);
+		register("mmh2", UTF8, MMH2, DEC);
+		register("mmh2-hex", UTF8, MMH2, LONG_HEX);
+		register("mmh2-64", UTF8, MMH2_64, DEC);
+		register("mmh2-64-hex", UTF8, MMH2_64, LONG_HEX);
+		register("mmh3-32", UTF8, MMH3_32, DEC);
+		register("mmh3-32-hex", UTF8, MMH3_32, LONG_HEX);
+		register("mmh3-128-1", UTF8, MMH3_128, FIRST, DEC);
+		register("mmh3-128-1-hex", UTF8, MMH3_128, FIRST, LONG_HEX);
+		register("mmh3-128-2", UTF8, MMH3_128, SECOND, DEC);
+		register("mmh3-128-2-hex", UTF8, MMH3_128, SECOND, LONG_HEX);
+
+		// digest representations
+		register("md5-upper", UTF8, MD5, HEX_UPPER);
+		register("sha1-upper", UTF8, SHA1, HEX_UPPER);
+		register("sha224-upper", UTF8, SHA224, HEX_UPPER);
+		register("sha256-upper", UTF8, SHA256, HEX_UPPER);
+		register("sha384-upper", UTF8, SHA384, HEX_UPPER);
+		register("sha512-upper", UTF8, SHA512, HEX_UPPER);
+		register("md5-base64", UTF8, MD5, BASE64);
+		register("sha1-base64", UTF8, SHA1, BASE64);
+		register("sha256-base64", UTF8, SHA256, BASE64);
+
+		// chained digests (of the hex digest)
+		register("md5(md5)", UTF8, MD5, HEX, UTF8, MD5, HEX);
+		register("sha1(md5)", UTF8, MD5, HEX, UTF8, SHA1, HEX);
+		register("sha256(md5)", UTF8, MD5, HEX, UTF8, SHA256, HEX);
+		register("md5(sha1)", UTF8, SHA1, HEX, UTF8, MD5, HEX);
+		register("sha256(sha1)", UTF8, SHA1, HEX, UTF8, SHA256, HEX);
+		register("sha256(sha256)", UTF8, SHA256, HEX, UTF8, SHA256, HEX);
+
+		// normalized address (trimmed and lowercased)
+		register("lower", LOWER);
+		register("base64(lower)", LOWER, UTF8, BASE64);
+		register("md5(lower)", LOWER, UTF8, MD5, HEX);
+		register("sha1(lower)", LOWER, UTF8, SHA1, HEX);
+		register("sha256(lower)", LOWER, UTF8, SHA256, HEX);
+		register("md5-upper(lower)", LOWER, UTF8, MD5, HEX_UPPER);
+		register("sha256-upper(lower)", LOWER, UTF8, SHA256, HEX_UPPER);
+
+		// local part (hashed only, since the address itself contains it as-is)
+		register("md5(local)", LOCAL, UTF8, MD5, HEX);
+		register("sha1(local)", LOCAL, UTF8, SHA1, HEX);
+		register("sha256(local)", LOCAL, UTF8, SHA256, HEX);
+
+		ENCODING_NAMES = encodingNames.toArray(new String[encodingNames.size()]);
+	}
+
+	/** Returns a step computing the given digest, or null if the algorithm is not supported. */
+	private static Step digest(String algorithm) {
 		try {
-			list.add(new NamedValue<String>("sha384", toHex(MessageDigest.getInstance("SHA-384").digest(bytes))));
-		} catch (NoSuchAlgorithmException e) {}
+			MessageDigest.getInstance(algorithm);
+		} catch (NoSuchAlgorithmException e) {
+			return null;
+		}
+		ThreadLocal<MessageDigest> md = ThreadLocal.withInitial(() -> {
+			try {
+				return MessageDigest.getInstance(algorithm);
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);  // checked above
+			}
+		});
+		return new Step(o -> md.get().digest((byte[]) o), false);
+	}
+
+	/**
+	 * Registers an encoding, derived from the input string by the given steps
+	 * (which must end with a string), unless any step is unsupported.
+	 * Steps shared with previously registered encodings are computed once.
+	 */
+	private static void register(String name, Step... steps) {
+		for (Step step : steps) {
+			if (step == null)
+				return;
+		}
+		Node node = ROOT;
+		for (Step step : steps) {
+			Node next = null;
+			for (Node child : node.children) {
+				if (child.step == step) {
+					next = child;
+					break;
+				}
+			}
+			if (next == null) {
+				next = new Node(step);
+				node.children.add(next);
+			}
+			node = next;
+		}
+		if (node.index != -1)
+			throw new IllegalArgumentException(String.format("Encoding '%s' duplicates '%s'.", name, encodingNames.get(node.index)));
+		node.index = encodingNames.size();
+		encodingNames.add(name);
+		for (Step step : steps) {
+			if (step.shortHash)
+				shortHashNames.add(name);
+		}
+	}
+
+	/** Returns the names of all encodings (see {@link #encode(String)}). */
+	public static List<String> getEncodingNames() { return Collections.unmodifiableList(encodingNames); }
+
+	/**
+	 * Returns whether the encoding is derived from a 32-bit hash (e.g. crc32),
+	 * whose values collide too often to attribute them to one of many users.
+	 */
+	public static boolean isShortHash(String name) { return shortHashNames.contains(name); }
+
+	/** Returns a list of encodings (mostly hashes) of the given string. */
+	public static List<NamedValue<String>> getEncodings(String s) { return encode(s).asList(); }
+
+	/**
+	 * Returns the encodings (mostly hashes) of the given string.
+	 * <p>
+	 * Variant encodings (e.g. of the lowercased string) are omitted if the
+	 * variant is the same as the string itself.
+	 */
+	public static Encodings encode(String s) {
+		String[] values = new String[ENCODING_NAMES.length];
+		values[ROOT.index] = s;
+		int count = 1 + derive(ROOT, s, values);
+		if (count == values.length)
+			return new Encodings(ENCODING_NAMES, values);
+
+		// drop omitted variants
+		String[] names = new String[count], compact = new String[count];
+		for (int i = 0, j = 0; i < values.length; i++) {
+			if (values[i] != null) {
+				names[j] = ENCODING_NAMES[i];
+				compact[j++] = values[i];
+			}
+		}
+		return new Encodings(names, compact);
+	}
+
+	/** Computes the values of all encodings below a node, and returns the number computed. */
+	private static int derive(Node node, Object value, String[] values) {
+		int count = 0;
+		for (int i = 0, n = node.children.size(); i < n; i++) {
+			Node child = node.children.get(i);
+			Object derived = child.step.function.apply(value);
+			if (child.step.variant && derived.equals(value))
+				continue;
+			if (child.index != -1) {
+				values[child.index] = (String) derived;
+				count++;
+			}
+			count += derive(child, derived, values);
+		}
+		return count;
+	}
+
+	/** Returns the URL-encoded (UTF-8) form of a string. */
+	private static String urlEncode(String s) {
 		try {
-			list.add(new NamedValue<String>("sha512", toHex(MessageDigest.getInstance("SHA-512").digest(bytes))));
-		} catch (NoSuchAlgorithmException e) {}
-
-		// checksums
-		CRC32 crc = new CRC32();
-		crc.update(bytes);
-		Adler32 adler = new Adler32();
-		adler.update(bytes);
-		list.add(new NamedValue<String>("crc32", Long.toString(crc.getValue())));
-		list.add(new NamedValue<String>("crc32-hex", Long.toHexString(crc.getValue())));
-		list.add(new NamedValue<String>("adler32", Long.toString(adler.getValue())));
-		list.add(new NamedValue<String>("adler32-hex", Long.toHexString(adler.getValue())));
-
-		// murmur hashes
-		long murmur1 = Murmur1.hash(bytes, bytes.length, 0);
-		long murmur2 = Murmur2.hash(bytes, bytes.length, 0);
-		long murmur2_64 = Murmur2.hash64(bytes, bytes.length, 0);
-		long murmur3_32 = Murmur3.hash_x86_32(bytes, bytes.length, 0);
-		long[] murmur3_128 = Murmur3.hash_x64_128(bytes, bytes.length, 0);
-		list.add(new NamedValue<String>("mmh1", Long.toString(murmur1)));
-		list.add(new NamedValue<String>("mmh1-hex", Long.toHexString(murmur1)));
-		list.add(new NamedValue<String>("mmh2", Long.toString(murmur2)));
-		list.add(new NamedValue<String>("mmh2-hex", Long.toHexString(murmur2)));
-		list.add(new NamedValue<String>("mmh2-64", Long.toString(murmur2_64)));
-		list.add(new NamedValue<String>("mmh2-64-hex", Long.toHexString(murmur2_64)));
-		list.add(new NamedValue<String>("mmh3-32", Long.toString(murmur3_32)));
-		list.add(new NamedValue<String>("mmh3-32-hex", Long.toHexString(murmur3_32)));
-		list.add(new NamedValue<String>("mmh3-128-1", Long.toString(murmur3_128[0])));
-		list.add(new NamedValue<String>("mmh3-128-1-hex", Long.toHexString(murmur3_128[0])));
-		list.add(new NamedValue<String>("mmh3-128-2", Long.toString(murmur3_128[1])));
-		list.add(new NamedValue<String>("mmh3-128-2-hex", Long.toHexString(murmur3_128[1])));
-
-		return list;
+			return URLEncoder.encode(s, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			return s;  // UTF-8 is always supported
+		}
+	}
+
+	/**
+	 * Returns a matcher for the encodings of the given string,
+	 * computing it only if not already cached.
+	 */
+	public static EncodingMatcher getMatcher(String s) {
+		return matcherCache.getUnchecked(s);
 	}
 
+	/** Returns the matcher cache statistics (hits, misses, evictions, etc.). */
+	public static CacheStats getMatcherCacheStats() { return matcherCache.stats(); }
+
 	/** Converts the byte array into a hexadecimal string. */
-	private static String toHex(byte[] bytes) {
-		StringBuilder sb = new StringBuilder();
+	private static String toHex(byte[] bytes, char[] digits) {
+		char[] hex = new char[bytes.length * 2];
 		for (int i = 0; i < bytes.length; i++) {
-			String hex = Integer.toHexString(bytes[i] & 0xff);
-			if (hex.length() == 1)
-				sb.append('0');
-			sb.append(hex);
+			hex[i * 2] = digits[(bytes[i] >> 4) & 0xf];
+			hex[i * 2 + 1] = digits[bytes[i] & 0xf];
 		}
-		return sb.toString();
+		return new String(hex);
 	}
 }
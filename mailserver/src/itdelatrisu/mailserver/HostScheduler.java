@@ -0,0 +1,308 @@
+package itdelatrisu.mailserver;
+
+import java.net.MalformedURLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Politeness scheduler for outgoing requests.
+ * <p>
+ * Requests are queued per host (registrable domain), and started in
+ * round-robin order across hosts, subject to a per-host concurrency limit, a
+ * minimum interval between requests to the same host, and an overall limit on
+ * requests in progress. Hosts that respond with 429 or 503 are backed off
+ * exponentially. (Only the first URL in a redirect chain is accounted for.)
+ */
+public class HostScheduler {
+	private static final Logger logger = LoggerFactory.getLogger(HostScheduler.class);
+
+	/** Default maximum number of requests in progress per host. */
+	private static final int DEFAULT_MAX_PER_HOST = 2;
+
+	/** Default minimum interval (in ms) between requests to the same host. */
+	private static final long DEFAULT_MIN_INTERVAL = 500;
+
+	/** Minimum interval (in ms) between requests to a backed-off host. */
+	private static final long MIN_BACKOFF_INTERVAL = 1000;
+
+	/** Maximum interval (in ms) between requests to a backed-off host. */
+	private static final long MAX_BACKOFF_INTERVAL = 60000;
+
+	/** Default maximum number of requests in progress overall. */
+	private static final int DEFAULT_MAX_ACTIVE = 256;
+
+	/** HTTP status codes indicating that the host is rate-limiting us. */
+	private static final int HTTP_TOO_MANY_REQUESTS = 429, HTTP_UNAVAILABLE = 503;
+
+	/** Per-host state. */
+	private static class Host {
+		/** The host name. */
+		private final String name;
+
+		/** The queued tasks. */
+		private final ArrayDeque<Runnable> queue = new ArrayDeque<Runnable>();
+
+		/** Number of requests in progress. */
+		private int active = 0;
+
+		/** Earliest time (in ms) the next request can start. */
+		private long nextStart = 0;
+
+		/** Current minimum interval (in ms) between requests. */
+		private long interval;
+
+		/** Constructor. */
+		private Host(String name, long interval) {
+			this.name = name;
+			this.interval = interval;
+		}
+	}
+
+	/** Per-host concurrency limit. */
+	private final int maxPerHost;
+
+	/** Base per-host interval (in ms) between requests. */
+	private final long minInterval;
+
+	/** Overall concurrency limit. */
+	private final int maxActive;
+
+	/** All hosts with queued or running requests (or an interval or backoff in effect). */
+	private final Map<String, Host> hosts = new HashMap<String, Host>();
+
+	/** Hosts with queued requests, in round-robin order. */
+	private final ArrayDeque<Host> rotation = new ArrayDeque<Host>();
+
+	/** Number of requests in progress overall. */
+	private int active = 0;
+
+	/** Number of queued requests overall. */
+	private int queued = 0;
+
+	/** Time (in ms) of the next scheduled dispatch, or {@code Long.MAX_VALUE} if none. */
+	private long wakeupTime = Long.MAX_VALUE;
+
+	/** Timer for delayed dispatches and idle host expiry. */
+	private final ScheduledExecutorService timer;
+
+	/** Executor for handling request completions (the timer, or inline once it is shut down). */
+	private final Executor completionExecutor;
+
+	/** Creates a scheduler with the default limits. */
+	public HostScheduler() {
+		this(DEFAULT_MAX_PER_HOST, DEFAULT_MIN_INTERVAL, DEFAULT_MAX_ACTIVE);
+	}
+
+	/**
+	 * Creates a scheduler.
+	 * @param maxPerHost the maximum number of requests in progress per host
+	 * @param minInterval the minimum interval (in ms) between requests to the same host
+	 * @param maxActive the maximum number of requests in progress overall
+	 */
+	public HostScheduler(int maxPerHost, long minInterval, int maxActive) {
+		this.maxPerHost = maxPerHost;
+		this.minInterval = minInterval;
+		this.maxActive = maxActive;
+		this.timer = Executors.newSingleThreadScheduledExecutor();
+		this.completionExecutor = r -> {
+			try {
+				timer.execute(r);
+			} catch (RejectedExecutionException e) {
+				r.run();
+			}
+		};
+	}
+
+	/** Returns the host key for a URL (its registrable domain). */
+	public static String getHostKey(String url) {
+		try {
+			String domain = Utils.getDomainName(url);
+			return (domain == null) ? "" : domain;
+		} catch (MalformedURLException e) {
+			return "";
+		}
+	}
+
+	/**
+	 * Queues a request.
+	 * @param url the URL (used to determine the host)
+	 * @param task the task, which starts the request and returns a future for its completion
+	 * @return a future that completes with the request
+	 */
+	public CompletableFuture<Request> submit(String url, final Supplier<CompletableFuture<Request>> task) {
+		final CompletableFuture<Request> result = new CompletableFuture<Request>();
+		String key = getHostKey(url);
+		synchronized (this) {
+			Host host = hosts.get(key);
+			if (host == null) {
+				host = new Host(key, minInterval);
+				hosts.put(key, host);
+			}
+			final Host h = host;
+			if (h.queue.isEmpty())
+				rotation.add(h);
+			h.queue.add(new Runnable() {
+				@Override
+				public void run() {
+					CompletableFuture<Request> future;
+					try {
+						future = task.get();
+					} catch (Exception e) {
+						future = new CompletableFuture<Request>();
+						future.completeExceptionally(e);
+					}
+					// handled on the timer thread, so that tasks failing immediately
+					// don't start the next ones recursively on the caller's stack
+					future.whenCompleteAsync((r, e) -> {
+						finished(h, r);
+						if (e != null)
+							result.completeExceptionally(e);
+						else
+							result.complete(r);
+					}, completionExecutor);
+				}
+			});
+			queued++;
+		}
+		dispatch();
+		return result;
+	}
+
+	/** Starts as many queued requests as the limits allow. */
+	private void dispatch() {
+		List<Runnable> toStart = new ArrayList<Runnable>();
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			long nextWakeup = Long.MAX_VALUE;
+			boolean progress = true;
+			while (progress && active < maxActive) {
+				progress = false;
+				for (int i = 0, n = rotation.size(); i < n && active < maxActive; i++) {
+					Host host = rotation.poll();
+					if (host.active < maxPerHost) {
+						if (now >= host.nextStart) {
+							toStart.add(host.queue.poll());
+							host.active++;
+							host.nextStart = now + host.interval;
+							active++;
+							queued--;
+							progress = true;
+						} else
+							nextWakeup = Math.min(nextWakeup, host.nextStart);
+					}
+					if (!host.queue.isEmpty())
+						rotation.add(host);
+				}
+			}
+
+			// wake up when the next rate-limited host becomes available
+			if (nextWakeup < wakeupTime && !timer.isShutdown()) {
+				wakeupTime = nextWakeup;
+				timer.schedule(new Runnable() {
+					@Override
+					public void run() {
+						synchronized (HostScheduler.this) {
+							wakeupTime = Long.MAX_VALUE;
+						}
+						dispatch();
+					}
+				}, nextWakeup - now, TimeUnit.MILLISECONDS);
+			}
+		}
+		for (Runnable r : toStart)
+			r.run();
+	}
+
+	/** Records the completion of a request, and starts the next ones. */
+	private void finished(Host host, Request req) {
+		synchronized (this) {
+			host.active--;
+			active--;
+
+			// back off if rate-limited, otherwise recover gradually
+			int code = (req == null) ? -1 : req.getResponseCode();
+			if (code == HTTP_TOO_MANY_REQUESTS || code == HTTP_UNAVAILABLE) {
+				host.interval = Math.min(Math.max(host.interval * 2, MIN_BACKOFF_INTERVAL), MAX_BACKOFF_INTERVAL);
+				host.nextStart = System.currentTimeMillis() + host.interval;
+				logger.debug("Host '{}' is rate-limiting requests, backing off to {} ms.", host.name, host.interval);
+			} else if (host.interval > minInterval)
+				host.interval = Math.max(host.interval / 2, minInterval);
+
+			expire(host);
+		}
+		dispatch();
+	}
+
+	/**
+	 * Forgets a host if it is idle, once its next request could start
+	 * immediately (so that its interval still applies to new requests until then).
+	 */
+	private synchronized void expire(final Host host) {
+		if (host.active > 0 || !host.queue.isEmpty() || host.interval > minInterval || hosts.get(host.name) != host)
+			return;
+		long delay = host.nextStart - System.currentTimeMillis();
+		if (delay <= 0)
+			hosts.remove(host.name);
+		else if (!timer.isShutdown()) {
+			try {
+				timer.schedule(() -> expire(host), delay, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {}
+		}
+	}
+
+	/** Returns the number of queued requests for the given host key (see {@link #getHostKey(String)}). */
+	public synchronized int getQueueDepth(String host) {
+		Host h = hosts.get(host);
+		return (h == null) ? 0 : h.queue.size();
+	}
+
+	/** Returns the number of queued requests for each host with queued requests. */
+	public synchronized Map<String, Integer> getQueueDepths() {
+		Map<String, Integer> map = new HashMap<String, Integer>();
+		for (Host h : hosts.values()) {
+			if (!h.queue.isEmpty())
+				map.put(h.name, h.queue.size());
+		}
+		return map;
+	}
+
+	/** Returns the number of queued requests overall. */
+	public synchronized int getQueuedCount() { return queued; }
+
+	/** Returns the number of requests in progress overall. */
+	public synchronized int getActiveCount() { return active; }
+
+	/**
+	 * Waits for queued and running requests to finish (up to the given
+	 * timeout), then stops the scheduler.
+	 */
+	public void shutdown(long timeoutMillis) {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (System.currentTimeMillis() < deadline) {
+			synchronized (this) {
+				if (queued == 0 && active == 0)
+					break;
+			}
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		timer.shutdownNow();
+	}
+}
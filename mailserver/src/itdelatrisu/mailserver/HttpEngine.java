@@ -0,0 +1,102 @@
+package itdelatrisu.mailserver;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.util.HttpCookieStore;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+/**
+ * Asynchronous HTTP engine used by {@link Request}.
+ * <p>
+ * Wraps a single non-blocking HTTP client, which pools keep-alive connections
+ * per destination. Redirects and cookies are not handled by the client:
+ * each {@link Request} follows its own redirect chain with its own cookie jar.
+ */
+public class HttpEngine {
+	/** Connection timeout (in ms). */
+	private static final int CONNECTION_TIMEOUT = 5000;
+
+	/** Maximum number of connections per destination. */
+	private static final int MAX_CONNECTIONS_PER_DESTINATION = 16;
+
+	/** Maximum number of queued requests per destination. */
+	private static final int MAX_QUEUED_PER_DESTINATION = 4096;
+
+	/** Maximum number of client threads. */
+	private static final int MAX_THREADS = 64;
+
+	/** The shared engine instance. */
+	private static HttpEngine defaultEngine;
+
+	/** The HTTP client. */
+	private final HttpClient client;
+
+	/** Number of requests in progress. */
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	/** Returns the shared engine instance, creating it if needed. */
+	public static synchronized HttpEngine getDefault() {
+		if (defaultEngine == null)
+			defaultEngine = new HttpEngine();
+		return defaultEngine;
+	}
+
+	/** Creates and starts an engine. */
+	public HttpEngine() {
+		SslContextFactory ssl = new SslContextFactory();
+		ssl.setEndpointIdentificationAlgorithm("HTTPS");
+		this.client = new HttpClient(ssl);
+		QueuedThreadPool threadPool = new QueuedThreadPool(MAX_THREADS);
+		threadPool.setName("http-client");
+		threadPool.setDaemon(true);
+		client.setExecutor(threadPool);
+		client.setConnectTimeout(CONNECTION_TIMEOUT);
+		client.setFollowRedirects(false);
+		client.setCookieStore(new HttpCookieStore.Empty());
+		client.setMaxConnectionsPerDestination(MAX_CONNECTIONS_PER_DESTINATION);
+		client.setMaxRequestsQueuedPerDestination(MAX_QUEUED_PER_DESTINATION);
+		client.getContentDecoderFactories().clear();  // response bodies are discarded
+		try {
+			client.start();
+		} catch (Exception e) {
+			throw new IllegalStateException("Failed to start HTTP client.", e);
+		}
+	}
+
+	/** Returns the HTTP client. */
+	HttpClient getClient() { return client; }
+
+	/** Records the start of a request. */
+	void requestStarted() { inFlight.incrementAndGet(); }
+
+	/** Records the end of a request. */
+	void requestFinished() { inFlight.decrementAndGet(); }
+
+	/** Returns the number of requests (i.e. redirect chains) in progress. */
+	public int getInFlightCount() { return inFlight.get(); }
+
+	/**
+	 * Waits for requests in progress to finish (up to the given timeout),
+	 * then stops the engine.
+	 */
+	public void stop(long timeoutMillis) {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (inFlight.get() > 0 && System.currentTimeMillis() < deadline) {
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		try {
+			client.stop();
+		} catch (Exception e) {}
+		synchronized (HttpEngine.class) {
+			if (defaultEngine == this)
+				defaultEngine = null;
+		}
+	}
+}
@@ -0,0 +1,339 @@
+package itdelatrisu.mailserver;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Staged pipeline for incoming mail: receive -> store -> analyze -> persist.
+ * <p>
+ * Each stage has its own bounded queue and worker pool, so that slow disk or
+ * database operations don't hold up the SMTP session threads. New messages
+ * are refused when the first stage's queue is full; later stages block the
+ * previous stage instead of dropping work.
+ */
+public class IngestPipeline {
+	private static final Logger logger = LoggerFactory.getLogger(IngestPipeline.class);
+
+	/** Default number of workers per stage. */
+	private static final int DEFAULT_STORE_WORKERS = 2, DEFAULT_ANALYZE_WORKERS = 4, DEFAULT_PERSIST_WORKERS = 2;
+
+	/** Maximum number of tasks running at once per stage when running on virtual threads. */
+	private static final int VIRTUAL_WORKERS = 64;
+
+	/** Default queue capacity per stage. */
+	private static final int DEFAULT_QUEUE_CAPACITY = 200;
+
+	/** Interval (in seconds) between statistics log entries. */
+	private static final int STATS_INTERVAL = 60;
+
+	/** Maximum time (in seconds) to wait for each stage to drain on shutdown. */
+	private static final int SHUTDOWN_TIMEOUT = 60;
+
+	/** A pipeline stage. */
+	public static class Stage {
+		/** The stage name. */
+		private final String name;
+
+		/** The executor. */
+		private final ExecutorService executor;
+
+		/** The worker pool (or null if running each task on its own virtual thread). */
+		private final ThreadPoolExecutor pool;
+
+		/** Permits for tasks in the stage (queued or running), and for running tasks (or null if using a pool). */
+		private final Semaphore admitted, running;
+
+		/** Number of tasks queued, and running. */
+		private final AtomicInteger queued = new AtomicInteger(), active = new AtomicInteger();
+
+		/** Number of tasks completed. */
+		private final AtomicLong completed = new AtomicLong();
+
+		/** Total time (in ns) spent by completed tasks, from submission to completion. */
+		private final AtomicLong totalLatency = new AtomicLong();
+
+		/** Total time (in ns) spent by completed tasks running. */
+		private final AtomicLong totalServiceTime = new AtomicLong();
+
+		/** Creates a new stage. */
+		private Stage(final String name, int workers, int capacity, boolean virtual) {
+			this.name = name;
+			if (virtual) {
+				// a new virtual thread per task, with the worker count limiting how many run at once
+				this.executor = VirtualThreads.newExecutor(String.format("ingest-%s-", name));
+				this.pool = null;
+				this.admitted = new Semaphore(workers + capacity);
+				this.running = new Semaphore(workers);
+				return;
+			}
+			this.pool = new ThreadPoolExecutor(
+				workers, workers, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(capacity),
+				new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+					@Override
+					public Thread newThread(Runnable r) {
+						return new Thread(r, String.format("ingest-%s-%d", name, count.incrementAndGet()));
+					}
+				},
+				new ThreadPoolExecutor.AbortPolicy()
+			);
+			pool.prestartAllCoreThreads();  // tasks may be queued directly
+			this.executor = pool;
+			this.admitted = this.running = null;
+		}
+
+		/**
+		 * Submits a task to the stage.
+		 * @param task the task
+		 * @param block whether to wait for queue space instead of failing when the queue is full
+		 * @return true if the task was queued
+		 */
+		private boolean submit(final Runnable task, boolean block) {
+			final long submitTime = System.nanoTime();
+			Runnable r = new Runnable() {
+				@Override
+				public void run() {
+					if (running != null)
+						running.acquireUninterruptibly();
+					queued.decrementAndGet();
+					active.incrementAndGet();
+					long startTime = System.nanoTime();
+					try {
+						task.run();
+					} catch (Exception e) {
+						logger.error(String.format("Unhandled error in '%s' stage.", name), e);
+					} finally {
+						long endTime = System.nanoTime();
+						totalServiceTime.addAndGet(endTime - startTime);
+						totalLatency.addAndGet(endTime - submitTime);
+						completed.incrementAndGet();
+						active.decrementAndGet();
+						if (running != null) {
+							running.release();
+							admitted.release();
+						}
+					}
+				}
+			};
+			queued.incrementAndGet();
+			if (!enqueue(r, block)) {
+				queued.decrementAndGet();
+				return false;
+			}
+			return true;
+		}
+
+		/** Hands a task to the executor, and returns whether it was accepted. */
+		private boolean enqueue(Runnable r, boolean block) {
+			if (executor.isShutdown())
+				return false;
+			try {
+				if (pool != null) {
+					if (block)
+						pool.getQueue().put(r);
+					else
+						pool.execute(r);
+					return true;
+				}
+				if (block)
+					admitted.acquire();
+				else if (!admitted.tryAcquire())
+					return false;
+				try {
+					executor.execute(r);
+				} catch (RejectedExecutionException e) {
+					admitted.release();
+					throw e;
+				}
+				return true;
+			} catch (RejectedExecutionException e) {
+				return false;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+
+		/** Returns whether the stage is unable to accept a task without blocking. */
+		private boolean isFull() {
+			return (pool != null) ? pool.getQueue().remainingCapacity() == 0 : admitted.availablePermits() == 0;
+		}
+
+		/** Returns the stage name. */
+		public String getName() { return name; }
+
+		/** Returns the number of queued tasks. */
+		public int getQueueDepth() { return queued.get(); }
+
+		/** Returns the number of tasks currently running. */
+		public int getActiveCount() { return active.get(); }
+
+		/** Returns the number of completed tasks. */
+		public long getCompletedCount() { return completed.get(); }
+
+		/** Returns the average time (in ms) from submission to completion. */
+		public double getAverageLatency() {
+			long n = completed.get();
+			return (n == 0) ? 0 : totalLatency.get() / 1e6 / n;
+		}
+
+		/** Returns the average time (in ms) spent running. */
+		public double getAverageServiceTime() {
+			long n = completed.get();
+			return (n == 0) ? 0 : totalServiceTime.get() / 1e6 / n;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(
+				"%s[queued=%d, active=%d, completed=%d, latency=%.1fms, service=%.1fms]",
+				name, getQueueDepth(), getActiveCount(), getCompletedCount(), getAverageLatency(), getAverageServiceTime()
+			);
+		}
+	}
+
+	/** The mail handler. */
+	private final MailHandler handler;
+
+	/** The stages. */
+	private final Stage storeStage, analyzeStage, persistStage;
+
+	/** The statistics logger. */
+	private final ScheduledExecutorService statsLogger;
+
+	/**
+	 * Creates the pipeline with the default stage sizes, or with a virtual
+	 * thread per task (and many more running at once) if enabled
+	 * (see {@link VirtualThreads#DELIVERY_PROPERTY}).
+	 */
+	public IngestPipeline(MailHandler handler) {
+		this(handler, VirtualThreads.isEnabled(VirtualThreads.DELIVERY_PROPERTY));
+	}
+
+	/** Creates the pipeline with the default stage sizes. */
+	private IngestPipeline(MailHandler handler, boolean virtual) {
+		this(
+			handler,
+			virtual ? VIRTUAL_WORKERS : DEFAULT_STORE_WORKERS,
+			virtual ? VIRTUAL_WORKERS : DEFAULT_ANALYZE_WORKERS,
+			virtual ? VIRTUAL_WORKERS : DEFAULT_PERSIST_WORKERS,
+			DEFAULT_QUEUE_CAPACITY, virtual
+		);
+	}
+
+	/**
+	 * Creates the pipeline.
+	 * @param handler the mail handler
+	 * @param storeWorkers the number of workers in the store stage
+	 * @param analyzeWorkers the number of workers in the analyze stage
+	 * @param persistWorkers the number of workers in the persist stage
+	 * @param queueCapacity the queue capacity of each stage
+	 */
+	public IngestPipeline(MailHandler handler, int storeWorkers, int analyzeWorkers, int persistWorkers, int queueCapacity) {
+		this(handler, storeWorkers, analyzeWorkers, persistWorkers, queueCapacity, false);
+	}
+
+	/**
+	 * Creates the pipeline.
+	 * @param handler the mail handler
+	 * @param storeWorkers the number of workers in the store stage
+	 * @param analyzeWorkers the number of workers in the analyze stage
+	 * @param persistWorkers the number of workers in the persist stage
+	 * @param queueCapacity the queue capacity of each stage
+	 * @param virtual whether to run each task on its own virtual thread (the worker counts then only limit concurrency)
+	 */
+	public IngestPipeline(MailHandler handler, int storeWorkers, int analyzeWorkers, int persistWorkers, int queueCapacity, boolean virtual) {
+		this.handler = handler;
+		this.storeStage = new Stage("store", storeWorkers, queueCapacity, virtual);
+		this.analyzeStage = new Stage("analyze", analyzeWorkers, queueCapacity, virtual);
+		this.persistStage = new Stage("persist", persistWorkers, queueCapacity, virtual);
+		if (virtual)
+			logger.info("Running the mail pipeline on virtual threads.");
+		this.statsLogger = Executors.newSingleThreadScheduledExecutor();
+		statsLogger.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() { logger.info("Pipeline: {} {} {}", storeStage, analyzeStage, persistStage); }
+		}, STATS_INTERVAL, STATS_INTERVAL, TimeUnit.SECONDS);
+	}
+
+	/** Returns the mail handler. */
+	public MailHandler getHandler() { return handler; }
+
+	/** Returns whether the pipeline is currently unable to accept new messages. */
+	public boolean isFull() { return storeStage.isFull(); }
+
+	/** Returns the stages, in order. */
+	public Stage[] getStages() { return new Stage[] { storeStage, analyzeStage, persistStage }; }
+
+	/**
+	 * Accepts a received message into the pipeline, which takes ownership of
+	 * it (and closes it when done).
+	 * @return true if the message was queued, or false if the pipeline is full
+	 *         (in which case the message is not closed)
+	 */
+	public boolean submit(final String from, final String recipient, final ParsedMessage message) {
+		return storeStage.submit(new Runnable() {
+			@Override
+			public void run() {
+				boolean queued = false;
+				try {
+					final MailDB.MailUser user = handler.store(from, recipient, message);
+					if (user != null) {
+						queued = analyzeStage.submit(new Runnable() {
+							@Override
+							public void run() { analyze(from, user, message); }
+						}, true);
+					}
+				} finally {
+					if (!queued)
+						message.close();
+				}
+			}
+		}, false);
+	}
+
+	/** Runs the analyze stage, and passes the results on to the persist stage. */
+	private void analyze(String from, MailDB.MailUser user, ParsedMessage message) {
+		final MailAnalyzer.Analysis analysis;
+		try {
+			analysis = handler.analyze(from, user, message);
+		} finally {
+			message.close();
+		}
+		if (analysis == null)
+			return;
+		persistStage.submit(new Runnable() {
+			@Override
+			public void run() { handler.persist(analysis); }
+		}, true);
+	}
+
+	/** Stops accepting messages, and waits for queued messages to finish processing. */
+	public void shutdown() {
+		statsLogger.shutdown();
+		for (Stage stage : getStages()) {
+			stage.executor.shutdown();
+			try {
+				if (!stage.executor.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS))
+					logger.warn("Timed out waiting for '{}' stage to finish ({} tasks queued).", stage.getName(), stage.getQueueDepth());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+		handler.shutdown();
+	}
+}
@@ -1,5 +1,7 @@
 package itdelatrisu.mailserver;
 
+import java.sql.SQLException;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -10,17 +12,30 @@ public class Launcher {
 	private static final Logger logger = LoggerFactory.getLogger(Launcher.class);
 	private static final String DOMAIN_NAME = "lorveskel.me";
 
-	public static void main(String[] args) {
-		String domain = DOMAIN_NAME;
-		logger.info("Initializing for domain [{}]...", domain);
-
-		// get mail database instance
-		MailDB db = new MailDB(
+	/** Returns a new mail database instance. */
+	static MailDB createDatabase() {
+		return new MailDB(
 			"com.mysql.jdbc.Driver",
 			"jdbc:mysql://localhost:3306/mail",
 			"mailserver",
 			"S6TTAykTfAEMJjqN"
 		);
+	}
+
+	public static void main(String[] args) {
+		String domain = DOMAIN_NAME;
+		logger.info("Initializing for domain [{}]...", domain);
+
+		// get mail database instance
+		MailDB db = createDatabase();
+
+		// load in-memory indexes
+		try {
+			db.loadIndexes();
+			logger.info("Indexed {} encoded email addresses.", db.getEncodingIndex().size());
+		} catch (SQLException e) {
+			logger.error("Failed to load user indexes.", e);
+		}
 
 		// start mail server
 		MailServer mailServer = new MailServer(db);
@@ -31,5 +46,13 @@ public class Launcher {
 		WebServer webServer = new WebServer(db, domain);
 		webServer.start();
 		logger.info("Web server running on port {}.", webServer.getPort());
+
+		// flush pending work on shutdown
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			logger.info("Shutting down...");
+			webServer.stop();
+			mailServer.stop();
+			db.close();
+		}));
 	}
 }
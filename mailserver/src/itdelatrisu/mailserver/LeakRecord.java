@@ -0,0 +1,76 @@
+package itdelatrisu.mailserver;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A URL containing a (possibly encoded) email address, to be recorded in the database.
+ */
+public class LeakRecord {
+	/** The URL. */
+	public final String url;
+
+	/** The URL type. */
+	public final String type;
+
+	/** The encoding name. */
+	public final String encoding;
+
+	/** Whether the URL was reached by a redirect. */
+	public final boolean isRedirect;
+
+	/** Whether the leak appears to be intentional. */
+	public final boolean isIntentional;
+
+	/** The sender. */
+	public final String senderDomain, senderAddress;
+
+	/** The user ID of the leaked email address. */
+	public final int recipientId;
+
+	/** The unique 16-byte record ID (so that writing a record again has no effect). */
+	public final byte[] id;
+
+	/** Creates a new leak record with a random ID. */
+	public LeakRecord(
+		String url,
+		String type,
+		String encoding,
+		boolean isRedirect,
+		boolean isIntentional,
+		String senderDomain,
+		String senderAddress,
+		int recipientId
+	) {
+		this(url, type, encoding, isRedirect, isIntentional, senderDomain, senderAddress, recipientId, randomId());
+	}
+
+	/** Creates a new leak record. */
+	public LeakRecord(
+		String url,
+		String type,
+		String encoding,
+		boolean isRedirect,
+		boolean isIntentional,
+		String senderDomain,
+		String senderAddress,
+		int recipientId,
+		byte[] id
+	) {
+		this.url = url;
+		this.type = type;
+		this.encoding = encoding;
+		this.isRedirect = isRedirect;
+		this.isIntentional = isIntentional;
+		this.senderDomain = senderDomain;
+		this.senderAddress = senderAddress;
+		this.recipientId = recipientId;
+		this.id = id;
+	}
+
+	/** Returns a random record ID. */
+	private static byte[] randomId() {
+		byte[] id = new byte[16];
+		ThreadLocalRandom.current().nextBytes(id);
+		return id;
+	}
+}
@@ -0,0 +1,235 @@
+package itdelatrisu.mailserver;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Write-behind buffer for leaked email address records.
+ * <p>
+ * Records are queued in memory and written to the database in batches,
+ * whenever a batch fills up or the oldest queued record reaches the maximum
+ * delay. Writers block if the buffer is full.
+ * <p>
+ * Failed writes are retried until the database is available again (so
+ * writers block once the buffer fills up); only while shutting down is a
+ * batch dropped after repeated failures.
+ */
+public class LeakSink {
+	private static final Logger logger = LoggerFactory.getLogger(LeakSink.class);
+
+	/** Maximum number of records per batch. */
+	private static final int BATCH_SIZE = 500;
+
+	/** Maximum time (in ms) a record is buffered before being written. */
+	private static final long MAX_DELAY = 1000;
+
+	/** Maximum number of buffered records. */
+	private static final int CAPACITY = 100000;
+
+	/** Number of attempts to write a batch before dropping it (while shutting down). */
+	private static final int MAX_ATTEMPTS = 3;
+
+	/** Initial delay (in ms) before retrying a failed write. */
+	private static final long RETRY_DELAY = 1000;
+
+	/** Maximum delay (in ms) before retrying a failed write. */
+	private static final long MAX_RETRY_DELAY = 30000;
+
+	/** Interval (in seconds) between statistics log entries. */
+	private static final int STATS_INTERVAL = 60;
+
+	/** The database instance. */
+	private final MailDB db;
+
+	/** The buffered records. */
+	private final BlockingQueue<LeakRecord> queue = new LinkedBlockingQueue<LeakRecord>(CAPACITY);
+
+	/** The flusher thread. */
+	private final Thread flusher;
+
+	/** Whether the sink is shutting down. */
+	private volatile boolean stopped = false;
+
+	/** Lock held while queueing a record (exclusively by {@link #shutdown()}, to wait for records being queued). */
+	private final ReadWriteLock queueLock = new ReentrantReadWriteLock();
+
+	/** The statistics logger. */
+	private final ScheduledExecutorService statsLogger;
+
+	/** Statistics. */
+	private final AtomicLong flushCount = new AtomicLong(), recordCount = new AtomicLong(), droppedCount = new AtomicLong();
+	private final AtomicLong totalFlushTime = new AtomicLong(), maxFlushTime = new AtomicLong();
+
+	/** Creates the sink and starts the flusher thread. */
+	public LeakSink(MailDB db) {
+		this.db = db;
+		this.flusher = new Thread(new Runnable() {
+			@Override
+			public void run() { flushLoop(); }
+		}, "leak-sink");
+		flusher.start();
+		this.statsLogger = Executors.newSingleThreadScheduledExecutor();
+		statsLogger.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() { logger.info("Leak sink: {}", LeakSink.this); }
+		}, STATS_INTERVAL, STATS_INTERVAL, TimeUnit.SECONDS);
+	}
+
+	/** Queues a record to be written, blocking if the buffer is full. */
+	public void add(LeakRecord leak) {
+		queueLock.readLock().lock();
+		try {
+			if (!stopped) {
+				queue.put(leak);
+				return;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			logger.error("Interrupted while queueing leaked email address record.");
+			return;
+		} finally {
+			queueLock.readLock().unlock();
+		}
+
+		// the flusher is draining or gone: write through
+		List<LeakRecord> list = new ArrayList<LeakRecord>(1);
+		list.add(leak);
+		write(list);
+	}
+
+	/** Flushes all buffered records, stops the flusher thread, and waits for it to finish. */
+	public void shutdown() {
+		stopped = true;
+		flusher.interrupt();
+
+		// wait for records being queued (from now on, records are written through)
+		queueLock.writeLock().lock();
+		queueLock.writeLock().unlock();
+
+		statsLogger.shutdown();
+		try {
+			flusher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		// write any records queued while stopping
+		List<LeakRecord> batch = new ArrayList<LeakRecord>();
+		while (queue.drainTo(batch, BATCH_SIZE) > 0) {
+			write(batch);
+			batch.clear();
+		}
+	}
+
+	/** Returns the number of buffered records. */
+	public int getQueueDepth() { return queue.size(); }
+
+	/** Returns the number of batches written. */
+	public long getFlushCount() { return flushCount.get(); }
+
+	/** Returns the number of records written. */
+	public long getRecordCount() { return recordCount.get(); }
+
+	/** Returns the number of records dropped after repeated write failures (while shutting down). */
+	public long getDroppedCount() { return droppedCount.get(); }
+
+	/** Returns the average time (in ms) taken to write a batch. */
+	public double getAverageFlushTime() {
+		long n = flushCount.get();
+		return (n == 0) ? 0 : totalFlushTime.get() / 1e6 / n;
+	}
+
+	/** Returns the maximum time (in ms) taken to write a batch. */
+	public double getMaxFlushTime() { return maxFlushTime.get() / 1e6; }
+
+	@Override
+	public String toString() {
+		return String.format(
+			"[queued=%d, flushes=%d, records=%d, dropped=%d, flush=%.1fms, maxFlush=%.1fms]",
+			getQueueDepth(), getFlushCount(), getRecordCount(), getDroppedCount(), getAverageFlushTime(), getMaxFlushTime()
+		);
+	}
+
+	/** Flusher thread loop. */
+	private void flushLoop() {
+		List<LeakRecord> batch = new ArrayList<LeakRecord>(BATCH_SIZE);
+		while (!stopped) {
+			try {
+				// wait for the first record, then fill the batch until full or the deadline
+				LeakRecord first = queue.take();
+				batch.add(first);
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(MAX_DELAY);
+				while (batch.size() < BATCH_SIZE) {
+					queue.drainTo(batch, BATCH_SIZE - batch.size());
+					long remaining = deadline - System.nanoTime();
+					if (batch.size() >= BATCH_SIZE || remaining <= 0)
+						break;
+					LeakRecord next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+					if (next == null)
+						break;
+					batch.add(next);
+				}
+			} catch (InterruptedException e) {
+				// shutting down: fall through and drain
+			}
+			if (!batch.isEmpty()) {
+				write(batch);
+				batch.clear();
+			}
+		}
+
+		// drain remaining records
+		while (queue.drainTo(batch, BATCH_SIZE) > 0) {
+			write(batch);
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Writes a batch of records to the database, retrying on failure until it
+	 * succeeds, or at most {@link #MAX_ATTEMPTS} times while shutting down
+	 * (records written by a failed attempt are skipped).
+	 */
+	private void write(List<LeakRecord> batch) {
+		long delay = RETRY_DELAY;
+		for (int attempt = 1; ; attempt++) {
+			long startTime = System.nanoTime();
+			try {
+				db.addLeakedEmailAddresses(batch);
+				long elapsed = System.nanoTime() - startTime;
+				flushCount.incrementAndGet();
+				recordCount.addAndGet(batch.size());
+				totalFlushTime.addAndGet(elapsed);
+				long max;
+				while (elapsed > (max = maxFlushTime.get()) && !maxFlushTime.compareAndSet(max, elapsed));
+				logger.debug("Wrote {} leaked email address records in {} ms.", batch.size(), elapsed / 1000000);
+				return;
+			} catch (SQLException e) {
+				if (stopped && attempt >= MAX_ATTEMPTS) {
+					droppedCount.addAndGet(batch.size());
+					logger.error(String.format("Failed to record %d leaked email addresses.", batch.size()), e);
+					return;
+				}
+				logger.warn(String.format("Failed to record %d leaked email addresses, retrying in %d ms...", batch.size(), delay), e);
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException ie) {
+					// shutting down: retry without delay
+				}
+				delay = Math.min(delay * 2, MAX_RETRY_DELAY);
+			}
+		}
+	}
+}
@@ -1,13 +1,20 @@
 package itdelatrisu.mailserver;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.jsoup.Jsoup;
+import org.jsoup.helper.StringUtil;
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+import org.jsoup.nodes.TextNode;
+import org.jsoup.select.NodeTraversor;
+import org.jsoup.select.NodeVisitor;
 
 /**
  * Link extractor.
@@ -65,8 +72,11 @@ public class LinkExtractor {
 		@Override public String toString() { return this.name().toLowerCase(); }
 	}
 
-	/** Parsed document. */
-	private final Document document;
+	/** Pattern for 'url()' values in CSS. */
+	private static final Pattern CSS_URL_PATTERN = Pattern.compile("url\\((?!['\"]?(?:data):)['\"]?([^'\"\\)]*)['\"]?\\)");
+
+	/** The document text (as in {@link Element#text()}). */
+	private final String text;
 
 	/** All links. */
 	private final List<Link> links = new ArrayList<Link>();
@@ -88,14 +98,16 @@ public class LinkExtractor {
 
 	/**
 	 * Extracts links from an HTML body.
+	 * <p>
+	 * The parsed document is not kept (only its text).
 	 * @param html the HTML body
 	 */
 	public LinkExtractor(String html) {
-		this.document = extractLinksFromHtml(html);
+		this.text = extractLinksFromHtml(html);
 	}
 
-	/** Returns the parsed document. */
-	public Document getDocument() { return document; }
+	/** Returns the document text. */
+	public String getText() { return text; }
 
 	/** Returns all extracted links. */
 	public List<Link> getAllLinks() { return links; }
@@ -115,66 +127,182 @@ public class LinkExtractor {
 	/** Returns all other media (e.g. with 'src' keys, but not 'img' tags). */
 	public List<String> getMedia() { return media; }
 
-	/** Finds all links contained in an HTML body. */
-	private Document extractLinksFromHtml(String html) {
+	/**
+	 * Finds all links contained in an HTML body (in a single pass over the
+	 * document, in document order), and returns the document text.
+	 */
+	private String extractLinksFromHtml(String html) {
 		// parse document
 		Document doc = Jsoup.parse(html);
 
+		final StringBuilder text = new StringBuilder();
+		final Deque<int[]> openLinks = new ArrayDeque<int[]>();  // [inline link index, text offset]
+		new NodeTraversor(new NodeVisitor() {
+			@Override
+			public void head(Node node, int depth) {
+				if (node instanceof TextNode)
+					appendText(text, (TextNode) node);
+				else if (node instanceof Element) {
+					Element e = (Element) node;
+					if (text.length() > 0 && (e.isBlock() || e.tagName().equals("br")) && !endsWithSpace(text))
+						text.append(' ');
+					visit(e, text, openLinks);
+				}
+			}
+
+			@Override
+			public void tail(Node node, int depth) {
+				if (node instanceof Element && isInlineLink((Element) node)) {
+					int[] link = openLinks.pop();
+					if (link[0] != -1)
+						inlineLinks.set(link[0], new InlineLink(inlineLinks.get(link[0]).url, text.substring(link[1]).trim()));
+				}
+			}
+		}).traverse(doc);
+
+		return text.toString().trim();
+	}
+
+	/** Extracts the links from an element. */
+	private void visit(Element e, StringBuilder text, Deque<int[]> openLinks) {
+		String tag = e.tagName();
+
 		// media
-		for (Element src : doc.select("[src]")) {
-			String url = src.attr("abs:src");
-			if (!url.startsWith("http"))
-				continue;
-			if (src.tagName().equals("img")) {
-				String width = src.attr("width").trim(), height = src.attr("height").trim();
-				inlineImages.add(new Image(url, width, height));
+		String src = null;
+		if (e.hasAttr("src")) {
+			src = e.absUrl("src");
+			if (src.startsWith("http")) {
+				if (tag.equals("img")) {
+					inlineImages.add(new Image(src, e.attr("width").trim(), e.attr("height").trim()));
+					links.add(new Link(src, LinkType.IMAGE));
+				} else {
+					media.add(src);
+					links.add(new Link(src, LinkType.MEDIA));
+				}
+			}
+		}
+
+		// responsive images (alternate sources, so the dimensions don't apply)
+		if (e.hasAttr("srcset")) {
+			for (String candidate : parseSrcset(e.attr("srcset"))) {
+				String url = StringUtil.resolve(e.baseUri(), candidate);
+				if (!url.startsWith("http") || url.equals(src))
+					continue;
+				inlineImages.add(new Image(url, "", ""));
 				links.add(new Link(url, LinkType.IMAGE));
-			} else {
-				media.add(url);
-				links.add(new Link(url, LinkType.MEDIA));
 			}
 		}
 
 		// imports
-		for (Element link : doc.select("link[href]")) {
-			String url = link.attr("abs:href");
-			if (!url.startsWith("http"))
-				continue;
-			imports.add(url);
-			links.add(new Link(url, LinkType.IMPORT));
+		if (tag.equals("link") && e.hasAttr("href")) {
+			String url = e.absUrl("href");
+			if (url.startsWith("http")) {
+				imports.add(url);
+				links.add(new Link(url, LinkType.IMPORT));
+			}
 		}
 
-		// links
-		for (Element link : doc.select("a[href]")) {
-			String url = link.attr("abs:href");
-			if (!url.startsWith("http"))
-				continue;
-			inlineLinks.add(new InlineLink(url, link.text()));
-			links.add(new Link(url, LinkType.LINK));
+		// links (the text is filled in once the element's contents are visited)
+		if (isInlineLink(e)) {
+			String url = e.absUrl("href");
+			if (url.startsWith("http")) {
+				openLinks.push(new int[] { inlineLinks.size(), text.length() });
+				inlineLinks.add(new InlineLink(url, ""));
+				links.add(new Link(url, LinkType.LINK));
+			} else
+				openLinks.push(new int[] { -1, 0 });
 		}
 
 		// css
-		for (Element css : doc.select("style")) {
-			List<String> cssLinks = extractLinksFromCSS(css.data());
-			inlineCssImages.addAll(cssLinks);
-			for (String url : cssLinks)
-				links.add(new Link(url, LinkType.IMAGE));
+		if (tag.equals("style"))
+			addCssImages(e.data());
+		if (e.hasAttr("style"))
+			addCssImages(e.attr("style"));
+	}
+
+	/** Returns whether an element is an inline link. */
+	private static boolean isInlineLink(Element e) { return e.tagName().equals("a") && e.hasAttr("href"); }
+
+	/**
+	 * Returns the image candidate URLs in a {@code srcset} attribute, as
+	 * parsed by browsers: a URL is a run of non-whitespace characters (which
+	 * may contain commas), and a candidate ends at a trailing comma or at the
+	 * first comma after its descriptors (outside parentheses).
+	 */
+	private static List<String> parseSrcset(String srcset) {
+		List<String> urls = new ArrayList<String>();
+		int i = 0, n = srcset.length();
+		while (true) {
+			// skip whitespace and commas
+			while (i < n && (isSrcsetWhitespace(srcset.charAt(i)) || srcset.charAt(i) == ','))
+				i++;
+			if (i >= n)
+				return urls;
+
+			// read the URL (trailing commas end the candidate)
+			int start = i;
+			while (i < n && !isSrcsetWhitespace(srcset.charAt(i)))
+				i++;
+			int end = i;
+			while (end > start && srcset.charAt(end - 1) == ',')
+				end--;
+			urls.add(srcset.substring(start, end));
+			if (end < i)
+				continue;
+
+			// skip the descriptors
+			boolean inParens = false;
+			for (; i < n; i++) {
+				char c = srcset.charAt(i);
+				if (inParens) {
+					if (c == ')')
+						inParens = false;
+				} else if (c == '(')
+					inParens = true;
+				else if (c == ',') {
+					i++;
+					break;
+				}
+			}
 		}
+	}
 
-		return doc;
+	/** Returns whether a character is ASCII whitespace (as defined by the HTML spec). */
+	private static boolean isSrcsetWhitespace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
 	}
 
-	/** Returns all links contained in a CSS body. */
-	private List<String> extractLinksFromCSS(String css) {
-		List<String> list = new ArrayList<String>();
-		Pattern pattern = Pattern.compile("url\\((?!['\"]?(?:data):)['\"]?([^'\"\\)]*)['\"]?\\)");
-		Matcher matcher = pattern.matcher(css);
+	/** Adds all images contained in a CSS body. */
+	private void addCssImages(String css) {
+		Matcher matcher = CSS_URL_PATTERN.matcher(css);
 		while (matcher.find()) {
 			String url = matcher.group(1).trim();
 			if (!url.startsWith("http"))
 				continue;
-			list.add(url);
+			inlineCssImages.add(url);
+			links.add(new Link(url, LinkType.IMAGE));
 		}
-		return list;
+	}
+
+	/** Appends the text of a text node, normalizing whitespace (as in {@link Element#text()}). */
+	private static void appendText(StringBuilder text, TextNode node) {
+		String s = node.getWholeText();
+		if (preservesWhitespace(node.parent()))
+			text.append(s);
+		else
+			StringUtil.appendNormalisedWhitespace(text, s, endsWithSpace(text));
+	}
+
+	/** Returns whether a node preserves whitespace (e.g. 'pre' tags and their children). */
+	private static boolean preservesWhitespace(Node node) {
+		if (!(node instanceof Element))
+			return false;
+		Element e = (Element) node;
+		return e.tag().preserveWhitespace() || (e.parent() != null && e.parent().tag().preserveWhitespace());
+	}
+
+	/** Returns whether the text ends with a space. */
+	private static boolean endsWithSpace(StringBuilder text) {
+		return text.length() > 0 && text.charAt(text.length() - 1) == ' ';
 	}
 }
@@ -1,5 +1,6 @@
 package itdelatrisu.mailserver;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
@@ -12,13 +13,17 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
-import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
 import javax.mail.MessagingException;
-import javax.mail.internet.MimeMessage;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -29,9 +34,15 @@ import org.slf4j.LoggerFactory;
 public class MailAnalyzer {
 	private static final Logger logger = LoggerFactory.getLogger(MailAnalyzer.class);
 
-	/** Size of the thread pool for executing requests. */
+	/** Size of the thread pool for scheduling requests and recording their results. */
 	private static final int MAX_REQUEST_THREADS = 5;
 
+	/** Maximum number of request results recorded concurrently in virtual-thread mode. */
+	private static final int MAX_VIRTUAL_RESULT_TASKS = 64;
+
+	/** Maximum time (in ms) to wait for requests in progress on shutdown. */
+	private static final int SHUTDOWN_TIMEOUT = 30000;
+
 	/** Delay (in ms) before scheduling a task. */
 	private static final int TASK_SCHEDULE_DELAY = 1000;
 
@@ -63,19 +74,35 @@ public class MailAnalyzer {
 	/** The database instance. */
 	private final MailDB db;
 
-	/** The thread pool for executing requests. */
+	/** The thread pool for scheduling requests and recording their results (or null if requests are disabled). */
 	private final ScheduledExecutorService pool;
 
+	/** Executor for recording request results (runs tasks inline once the pool is shut down). */
+	private final Executor resultExecutor;
+
+	/** The virtual-thread executor for recording request results (or null if not enabled). */
+	private final ExecutorService virtualExecutor;
+
+	/** The HTTP engine. */
+	private final HttpEngine http;
+
+	/** The per-host request scheduler. */
+	private final HostScheduler hostScheduler;
+
+	/** The journal of scheduled requests (or null if unavailable). */
+	private final RequestJournal journal;
+
 	/** The random number generator instance. */
 	private final Random random;
 
 	/** Task for making requests to a URL. */
-	private class RequestTask implements Callable<Request> {
+	private class RequestTask implements Runnable {
 		private final Request req;
 		private final String urlType;
 		private final String senderDomain, senderAddress;
 		private final int recipientId;
-		private final List<HashChecker.NamedValue<String>> encodings;
+		private final EncodingMatcher matcher;
+		private final long journalId;
 
 		/** Creates a new request task to request the given URL. */
 		public RequestTask(
@@ -84,117 +111,352 @@ public class MailAnalyzer {
 			String senderDomain,
 			String senderAddress,
 			int recipientId,
-			List<HashChecker.NamedValue<String>> encodings
+			EncodingMatcher matcher,
+			long journalId
 		) throws MalformedURLException {
-			this.req = new Request(url);
+			this.req = new Request(url, http);
 			this.urlType = type;
 			this.senderDomain = senderDomain;
 			this.senderAddress = senderAddress;
 			this.recipientId = recipientId;
-			this.encodings = encodings;
+			this.matcher = matcher;
+			this.journalId = journalId;
 		}
 
 		@Override
-		public Request call() throws Exception {
-			try {
-				// make the request
-				req.go();
-
-				// write results into database
-				db.addRedirects(req, senderDomain, senderAddress, recipientId);
-				if (!req.getRedirects().isEmpty()) {
-					for (URL url : req.getRedirects())
-						findLeakedEmailAddress(url.toString(), urlType, encodings, true, recipientId, senderDomain, senderAddress);
+		public void run() {
+			// queue the request with the host scheduler, then record the results
+			hostScheduler.submit(req.getURL().toString(), req::goAsync).whenCompleteAsync((r, e) -> {
+				try {
+					if (e != null)
+						logger.error(String.format("Error raised during request for [%s].", req.getURL().toString()), e);
+					else
+						record();
+				} catch (Exception ex) {
+					logger.error(String.format("Error raised during request for [%s].", req.getURL().toString()), ex);
+				} finally {
+					if (journal != null && journalId != 0)
+						journal.markDone(journalId);
 				}
+			}, resultExecutor);
+		}
 
-				return req;
-			} catch (Exception e) {
-				logger.error(String.format("Error raised during request for [%s].", req.getURL().toString()), e);
-				throw e;
+		/** Writes the results into the database. */
+		private void record() throws SQLException {
+			db.addRedirects(req, senderDomain, senderAddress, recipientId);
+			if (!req.getRedirects().isEmpty()) {
+				List<LeakRecord> leaks = new ArrayList<LeakRecord>();
+				for (URL url : req.getRedirects())
+					findLeakedEmailAddress(url.toString(), urlType, matcher, true, recipientId, senderDomain, senderAddress, leaks);
+				recordLeaks(leaks);
 			}
 		}
 	}
 
+	/** Results of analyzing a message, to be written out by {@link MailAnalyzer#persist(Analysis)}. */
+	public static class Analysis {
+		private final String from, senderDomain;
+		private final int recipientId;
+		private EncodingMatcher matcher;
+		private final List<LeakRecord> leaks = new ArrayList<LeakRecord>();
+		private final List<List<String>> linkGroups = new ArrayList<List<String>>();
+		private final List<String> imageRequests = new ArrayList<String>();
+
+		/** Creates an empty analysis. */
+		private Analysis(String from, int recipientId, String senderDomain) {
+			this.from = from;
+			this.recipientId = recipientId;
+			this.senderDomain = senderDomain;
+		}
+
+		/** Returns the sender address. */
+		public String getSender() { return from; }
+
+		/** Returns the sender domain (i.e. the recipient's registration site domain). */
+		public String getSenderDomain() { return senderDomain; }
+
+		/** Returns the recipient's user ID. */
+		public int getRecipientId() { return recipientId; }
+
+		/** Returns the leaked email addresses found. */
+		public List<LeakRecord> getLeaks() { return leaks; }
+
+		/** Returns the groups of links to visit. */
+		public List<List<String>> getLinkGroups() { return linkGroups; }
+
+		/** Returns the image URLs to request. */
+		public List<String> getImageRequests() { return imageRequests; }
+	}
+
 	/** Initializes the analyzer module. */
 	public MailAnalyzer(MailDB db) {
+		this(db, true);
+	}
+
+	/**
+	 * Initializes the analyzer module.
+	 * @param db the database instance
+	 * @param requests whether to make outbound requests; if false, nothing is
+	 *        requested (including journaled requests from a previous run), and
+	 *        {@link #persist(Analysis)} only records leaked email addresses
+	 */
+	public MailAnalyzer(MailDB db, boolean requests) {
+		this(db, requests, RequestJournal.DEFAULT_FILE);
+	}
+
+	/**
+	 * Initializes the analyzer module.
+	 * @param db the database instance
+	 * @param requests whether to make outbound requests (see {@link #MailAnalyzer(MailDB, boolean)})
+	 * @param journalFile the journal of scheduled requests, whose pending
+	 *        requests are resubmitted (or null for none)
+	 */
+	public MailAnalyzer(MailDB db, boolean requests, File journalFile) {
 		this.db = db;
-		this.pool = Executors.newScheduledThreadPool(MAX_REQUEST_THREADS);
 		this.random = new Random();
+		if (!requests) {
+			this.pool = null;
+			this.resultExecutor = null;
+			this.virtualExecutor = null;
+			this.http = null;
+			this.hostScheduler = null;
+			this.journal = null;
+			return;
+		}
+		this.pool = Executors.newScheduledThreadPool(MAX_REQUEST_THREADS);
+		if (VirtualThreads.isEnabled(VirtualThreads.REQUESTS_PROPERTY)) {
+			// one virtual thread per result, limited by a semaphore instead of the pool size
+			this.virtualExecutor = VirtualThreads.newExecutor();
+			final Semaphore permits = new Semaphore(MAX_VIRTUAL_RESULT_TASKS);
+			this.resultExecutor = r -> {
+				try {
+					virtualExecutor.execute(() -> {
+						permits.acquireUninterruptibly();
+						try {
+							r.run();
+						} finally {
+							permits.release();
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					r.run();
+				}
+			};
+			logger.info("Recording request results on virtual threads.");
+		} else {
+			this.virtualExecutor = null;
+			this.resultExecutor = r -> {
+				try {
+					pool.execute(r);
+				} catch (RejectedExecutionException e) {
+					r.run();
+				}
+			};
+		}
+		this.http = new HttpEngine();
+		this.hostScheduler = new HostScheduler();
+		RequestJournal journal = null;
+		try {
+			if (journalFile != null)
+				journal = new RequestJournal(journalFile);
+		} catch (IOException e) {
+			logger.error("Failed to open request journal; scheduled requests will not survive restarts.", e);
+		}
+		this.journal = journal;
+
+		// resubmit requests left pending by a previous run
+		if (journal != null && !journal.replay().isEmpty())
+			pool.schedule(this::replayJournal, TASK_SCHEDULE_DELAY, TimeUnit.MILLISECONDS);
 	}
 
-	/** Shuts down the executor service. */
-	public void shutdown() { pool.shutdown(); }
+	/** Shuts down the executor service, and waits for requests in progress to finish. */
+	public void shutdown() {
+		if (pool == null)
+			return;
+		pool.shutdown();
+		try {
+			pool.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		hostScheduler.shutdown(SHUTDOWN_TIMEOUT);
+		http.stop(SHUTDOWN_TIMEOUT);
+		if (virtualExecutor != null) {
+			virtualExecutor.shutdown();
+			try {
+				virtualExecutor.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (journal != null)
+			journal.close();  // unfinished requests will be replayed on the next run
+	}
 
-	/** Analyzes the mail. */
-	public void analyze(String from, MailDB.MailUser user, String data) {
+	/** Resubmits the requests left pending by a previous run. */
+	private void replayJournal() {
+		Map<Integer, EncodingMatcher> matchers = new HashMap<Integer, EncodingMatcher>();
+		int count = 0;
+		for (RequestJournal.Entry entry : journal.replay()) {
+			// get the recipient's encodings
+			EncodingMatcher matcher = matchers.get(entry.recipientId);
+			if (matcher == null) {
+				try {
+					MailDB.MailUser user = db.getUserInfo(entry.recipientId);
+					if (user == null) {
+						journal.markDone(entry.id);
+						continue;
+					}
+					matcher = HashChecker.getMatcher(user.getEmail());
+					matchers.put(entry.recipientId, matcher);
+				} catch (SQLException e) {
+					logger.error("Failed to query database.", e);
+					continue;
+				}
+			}
+
+			try {
+				new RequestTask(
+					entry.url, entry.type, entry.senderDomain, entry.senderAddress,
+					entry.recipientId, matcher, entry.id
+				).run();
+				count++;
+			} catch (MalformedURLException e) {
+				journal.markDone(entry.id);
+			}
+		}
+		logger.info("Resubmitted {} journaled requests.", count);
+	}
+
+	/** Returns whether outbound requests are enabled. */
+	public boolean isRequestsEnabled() { return pool != null; }
+
+	/** Returns the HTTP engine (or null if requests are disabled). */
+	public HttpEngine getHttpEngine() { return http; }
+
+	/** Returns the per-host request scheduler (or null if requests are disabled). */
+	public HostScheduler getHostScheduler() { return hostScheduler; }
+
+	/**
+	 * Analyzes the mail, without writing anything out.
+	 * @return the analysis results, or null if the mail was not analyzed
+	 * @see #persist(Analysis)
+	 */
+	public Analysis analyze(String from, MailDB.MailUser user, ParsedMessage message) {
 		if (user.getRegistrationSiteDomain() == null || user.getRegistrationSiteDomain().isEmpty())
-			return;
+			return null;
 
 		// extract HTML from the email
-		MimeMessage message;
 		String html;
-		LinkExtractor extractor = null;
+		LinkExtractor extractor;
 		try {
-			message = Utils.toMimeMessage(data);
-			html = Utils.getHtmlFromMessage(message);
-			if (html != null)
-				extractor = new LinkExtractor(html);
+			html = message.getHtml();
+			extractor = message.getLinkExtractor();
 		} catch (MessagingException | IOException e) {
 			logger.error("Failed to parse message.", e);
-			return;
+			return null;
 		}
+		Analysis analysis = new Analysis(from, user.getId(), user.getRegistrationSiteDomain());
 
 		// is this the first email?
 		if (user.getReceivedEmailCount() == 0)
-			findConfirmationLinksToVisit(message, extractor, from, user.getId(), user.getRegistrationSiteDomain());
+			findConfirmationLinksToVisit(message, extractor, analysis);
 
 		if (html == null)
-			return;  // no HTML, skip everything else
+			return analysis;  // no HTML, skip everything else
 
 		// find leaked email addresses
-		List<HashChecker.NamedValue<String>> encodings = HashChecker.getEncodings(user.getEmail());
+		EncodingMatcher matcher = HashChecker.getMatcher(user.getEmail());
+		analysis.matcher = matcher;
 		for (LinkExtractor.Link link : extractor.getAllLinks())
-			findLeakedEmailAddress(link.url, link.type.toString(), encodings, false, user.getId(), user.getRegistrationSiteDomain(), from);
+			findLeakedEmailAddress(link.url, link.type.toString(), matcher, false, user.getId(), user.getRegistrationSiteDomain(), from, analysis.leaks);
 
-		// request tracking images
-		requestTrackingImages(extractor, from, user.getId(), user.getRegistrationSiteDomain(), encodings);
+		// find tracking images to request
+		findTrackingImages(extractor, matcher, analysis);
 
-		// record links to visit
-		recordLinksToVisit(extractor, from, user.getId(), user.getRegistrationSiteDomain(), encodings);
+		// find links to visit
+		findLinksToVisit(extractor, matcher, analysis);
+
+		return analysis;
+	}
+
+	/** Writes out the analysis results, and submits any requests. */
+	public void persist(Analysis analysis) {
+		// record leaked email addresses
+		recordLeaks(analysis.leaks);
+		if (pool == null)
+			return;  // requests disabled
+
+		// record links in database
+		for (List<String> urls : analysis.linkGroups) {
+			try {
+				db.addLinkGroup(urls, analysis.senderDomain, analysis.from, analysis.recipientId);
+			} catch (SQLException e) {
+				logger.error("Failed to record links to visit.", e);
+			}
+		}
+
+		// submit all requests
+		String type = LinkExtractor.LinkType.IMAGE.toString();
+		List<CompletableFuture<Long>> journalIds = new ArrayList<CompletableFuture<Long>>();
+		for (String url : analysis.imageRequests) {
+			// journal the requests first, so that they survive a restart
+			journalIds.add((journal == null) ? CompletableFuture.completedFuture(0L) :
+				journal.appendAsync(url, type, analysis.senderDomain, analysis.from, analysis.recipientId));
+		}
+		for (int i = 0; i < analysis.imageRequests.size(); i++) {
+			long journalId = 0;
+			try {
+				journalId = journalIds.get(i).get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				logger.error("Failed to journal request.", e.getCause());
+			}
+			try {
+				RequestTask task = new RequestTask(
+					analysis.imageRequests.get(i), type,
+					analysis.senderDomain, analysis.from, analysis.recipientId, analysis.matcher, journalId
+				);
+				pool.schedule(task, TASK_SCHEDULE_DELAY, TimeUnit.MILLISECONDS);
+			} catch (MalformedURLException e) {
+				if (journalId != 0)
+					journal.markDone(journalId);
+			}
+		}
 	}
 
-	/** Finds leaked email addresses in the given URL. */
+	/** Records leaked email addresses in the database. */
+	private void recordLeaks(List<LeakRecord> leaks) {
+		for (LeakRecord leak : leaks)
+			db.addLeakedEmailAddress(leak);
+	}
+
+	/** Finds leaked email addresses in the given URL, and adds them to the list. */
 	private void findLeakedEmailAddress(
 		String url,
 		String type,
-		List<HashChecker.NamedValue<String>> encodings,
+		EncodingMatcher matcher,
 		boolean isRedirect,
 		int recipientId,
 		String senderDomain,
-		String senderAddress
+		String senderAddress,
+		List<LeakRecord> leaks
 	) {
-		try {
-			for (HashChecker.NamedValue<String> enc : encodings) {
-				if (url.contains(enc.getValue())) {
-					db.addLeakedEmailAddress(
-						url, type, enc.getName(), isRedirect, true,
-						senderDomain, senderAddress, recipientId
-					);
-				}
-			}
-		} catch (SQLException e) {
-			logger.error("Failed to record leaked email address.", e);
+		for (HashChecker.NamedValue<String> enc : matcher.findAllDecoded(url))
+			leaks.add(new LeakRecord(url, type, enc.getName(), isRedirect, true, senderDomain, senderAddress, recipientId));
+
+		// other users' email addresses (e.g. reused IDs, forwarded lists)
+		Set<String> found = new HashSet<String>();
+		for (EncodingIndex.Match m : db.getEncodingIndex().find(url)) {
+			if (m.userId == recipientId || !found.add(m.userId + ":" + m.encoding))
+				continue;
+			leaks.add(new LeakRecord(url, type, m.encoding, isRedirect, true, senderDomain, senderAddress, m.userId));
 		}
 	}
 
-	/** Makes requests for tracking images present in the message. */
-	private void requestTrackingImages(
-		LinkExtractor extractor,
-		String from,
-		int recipientId,
-		String senderDomain,
-		List<HashChecker.NamedValue<String>> encodings
-	) {
+	/** Finds tracking images present in the message to request. */
+	private void findTrackingImages(LinkExtractor extractor, EncodingMatcher matcher, Analysis analysis) {
 		try {
 			// make requests for:
 			// - images explicitly labeled as 1x1
@@ -205,61 +467,29 @@ public class MailAnalyzer {
 			for (LinkExtractor.Image img : extractor.getInlineImages()) {
 				if (img.width.equals("1") && img.height.equals("1"))
 					requests.add(img.url);
-				else {
-					boolean added = false;
-					for (HashChecker.NamedValue<String> enc : encodings) {
-						if (img.url.contains(enc.getValue())) {
-							requests.add(img.url);
-							added = true;
-							break;
-						}
-					}
-					if (!added)
-						nonRequestedImages.add(img.url);
-				}
+				else if (matcher.matchesAnyDecoded(img.url))
+					requests.add(img.url);
+				else
+					nonRequestedImages.add(img.url);
 			}
 			for (String img : extractor.getInlineCssImages()) {
-				boolean added = false;
-				for (HashChecker.NamedValue<String> enc : encodings) {
-					if (img.contains(enc.getValue())) {
-						requests.add(img);
-						added = true;
-						break;
-					}
-				}
-				if (!added)
+				if (matcher.matchesAnyDecoded(img))
+					requests.add(img);
+				else
 					nonRequestedImages.add(img);
 			}
 			if (!nonRequestedImages.isEmpty()) {
 				String img = nonRequestedImages.get(random.nextInt(nonRequestedImages.size()));
 				requests.add(img);
 			}
-			if (requests.isEmpty())
-				return;
-
-			// submit all requests
-			for (String url : requests) {
-				try {
-					RequestTask task = new RequestTask(
-						url, LinkExtractor.LinkType.IMAGE.toString(),
-						senderDomain, from, recipientId, encodings
-					);
-					pool.schedule(task, TASK_SCHEDULE_DELAY, TimeUnit.MILLISECONDS);
-				} catch (MalformedURLException e) {}
-			}
+			analysis.imageRequests.addAll(requests);
 		} catch (Exception e) {
-			logger.error("Failed to request tracking images.", e);
+			logger.error("Failed to find tracking images.", e);
 		}
 	}
 
-	/** Records a group of links in the message to be visited. */
-	private void recordLinksToVisit(
-		LinkExtractor extractor,
-		String from,
-		int recipientId,
-		String senderDomain,
-		List<HashChecker.NamedValue<String>> encodings
-	) {
+	/** Finds a group of links in the message to be visited. */
+	private void findLinksToVisit(LinkExtractor extractor, EncodingMatcher matcher, Analysis analysis) {
 		// visit links:
 		// - up to 2 URLs from the most frequent prefix:
 		//   > 1 URL containing the recipient email address (if any)
@@ -277,14 +507,10 @@ public class MailAnalyzer {
 		Collections.shuffle(maxList, random);
 		List<String> urls = new ArrayList<String>();
 		for (String url : maxList) {
-			for (HashChecker.NamedValue<String> enc : encodings) {
-				if (url.contains(enc.getValue())) {
-					urls.add(url);
-					break;
-				}
-			}
-			if (!urls.isEmpty())
+			if (matcher.matchesAnyDecoded(url)) {
+				urls.add(url);
 				break;
+			}
 		}
 		if (!urls.isEmpty())
 			maxList.remove(urls.get(0));
@@ -311,29 +537,18 @@ public class MailAnalyzer {
 				continue;
 			boolean added = false;
 			for (String url : list) {
-				for (HashChecker.NamedValue<String> enc : encodings) {
-					if (url.contains(enc.getValue())) {
-						urls.add(url);
-						added = true;
-						break;
-					}
-				}
-				if (added)
+				if (matcher.matchesAnyDecoded(url)) {
+					urls.add(url);
+					added = true;
 					break;
+				}
 			}
 			if (added)
 				break;
 		}
 
-		if (urls.isEmpty())
-			return;
-
-		// record links in database
-		try {
-			db.addLinkGroup(urls, senderDomain, from, recipientId);
-		} catch (SQLException e) {
-			logger.error("Failed to record links to visit.", e);
-		}
+		if (!urls.isEmpty())
+			analysis.linkGroups.add(urls);
 	}
 
 	/** Returns a map of the URLs grouped by prefix: prefix -> list(URLs). */
@@ -370,19 +585,13 @@ public class MailAnalyzer {
 	}
 
 	/** Finds email confirmation links to visit. */
-	private void findConfirmationLinksToVisit(
-		MimeMessage message,
-		LinkExtractor extractor,
-		String from,
-		int recipientId,
-		String senderDomain
-	) {
+	private void findConfirmationLinksToVisit(ParsedMessage message, LinkExtractor extractor, Analysis analysis) {
 		// if keyword matches in message subject line or text body...
 		// - HTML: link with a keyword in the tag text, or if only 1 link exists
 		// - plain-text: longest link
 		boolean subjectMatches;
 		try {
-			String subject = message.getSubject().toLowerCase();
+			String subject = (message.getSubject() == null) ? "" : message.getSubject().toLowerCase();
 			subjectMatches =
 				matches(subject, EMAIL_CONFIRMATION_KEYWORDS) &&
 				!matches(subject, EMAIL_CONFIRMATION_SUBJECT_BLACKLIST);
@@ -393,7 +602,7 @@ public class MailAnalyzer {
 		String url = null;
 		if (extractor != null && !extractor.getInlineLinks().isEmpty()) {
 			// check HTML
-			if (!subjectMatches && !matches(extractor.getDocument().text().toLowerCase(), EMAIL_CONFIRMATION_KEYWORDS))
+			if (!subjectMatches && !matches(extractor.getText().toLowerCase(), EMAIL_CONFIRMATION_KEYWORDS))
 				return;  // no keyword matches
 			if (extractor.getInlineLinks().size() == 1) {
 				LinkExtractor.InlineLink link = extractor.getInlineLinks().get(0);
@@ -427,7 +636,7 @@ public class MailAnalyzer {
 		} else {
 			// check plain-text
 			try {
-				String text = Utils.getTextFromMessage(message);
+				String text = message.getText();
 				if (text == null)
 					return;
 				if (!subjectMatches && !matches(text.toLowerCase(), EMAIL_CONFIRMATION_KEYWORDS))
@@ -448,14 +657,9 @@ public class MailAnalyzer {
 		if (url == null)
 			return;
 
-		// record links in database
 		List<String> urls = new ArrayList<String>(1);
 		urls.add(url);
-		try {
-			db.addLinkGroup(urls, senderDomain, from, recipientId);
-		} catch (SQLException e) {
-			logger.error("Failed to record email confirmation link to visit.", e);
-		}
+		analysis.linkGroups.add(urls);
 	}
 
 	/** Returns whether the given string matches any given keyword. */
@@ -0,0 +1,189 @@
+package itdelatrisu.mailserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Message compression (Deflate), with optional preset dictionaries.
+ * <p>
+ * Dictionaries are built from the lines that recur across a sample of stored
+ * messages (newsletter boilerplate, headers), and are identified by their
+ * Adler-32 checksum, which Deflate records in the compressed stream.
+ */
+public class MailCompression {
+	/** Maximum useful dictionary size (the Deflate window). */
+	public static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+
+	/** Minimum length (in bytes) of a line or tag to include in a dictionary. */
+	private static final int MIN_LINE_LENGTH = 8;
+
+	/** Maximum length (in bytes) of a line or tag to include in a dictionary. */
+	private static final int MAX_LINE_LENGTH = 1024;
+
+	/** This class should not be instantiated. */
+	private MailCompression() {}
+
+	/** Returns the ID of a dictionary. */
+	public static int getDictionaryId(byte[] dictionary) {
+		Adler32 adler = new Adler32();
+		adler.update(dictionary);
+		return (int) adler.getValue();
+	}
+
+	/**
+	 * Compresses data.
+	 * @param data the data
+	 * @param dictionary the preset dictionary, or null for none
+	 * @return the original length followed by the Deflate stream
+	 */
+	public static byte[] compress(byte[] data, byte[] dictionary) {
+		return compress(data, 0, data.length, dictionary);
+	}
+
+	/**
+	 * Compresses part of an array.
+	 * @param data the array containing the data
+	 * @param offset the offset of the data
+	 * @param length the length of the data
+	 * @param dictionary the preset dictionary, or null for none
+	 * @return the original length followed by the Deflate stream
+	 */
+	public static byte[] compress(byte[] data, int offset, int length, byte[] dictionary) {
+		Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+		try {
+			if (dictionary != null)
+				deflater.setDictionary(dictionary);
+			deflater.setInput(data, offset, length);
+			deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(length / 4 + 64);
+			out.write(length >>> 24);
+			out.write(length >>> 16);
+			out.write(length >>> 8);
+			out.write(length);
+			byte[] buf = new byte[8192];
+			while (!deflater.finished()) {
+				int n = deflater.deflate(buf);
+				out.write(buf, 0, n);
+			}
+			return out.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Decompresses data produced by {@link #compress(byte[], byte[])}.
+	 * @param data the compressed data
+	 * @param dictionaries the known dictionaries, keyed by ID
+	 */
+	public static byte[] decompress(byte[] data, Map<Integer, byte[]> dictionaries) throws IOException {
+		if (data.length < 4)
+			throw new IOException("Truncated compressed message.");
+		int length = ByteBuffer.wrap(data).getInt();
+		if (length < 0)
+			throw new IOException("Invalid compressed message length.");
+		byte[] out = new byte[length];
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(data, 4, data.length - 4);
+			int pos = 0;
+			byte[] overflow = new byte[1];
+			while (!inflater.finished()) {
+				int n = (pos < length) ? inflater.inflate(out, pos, length - pos) : inflater.inflate(overflow);
+				if (pos == length && n > 0)
+					throw new IOException("Compressed message is longer than expected.");
+				pos += n;
+				if (n == 0) {
+					if (inflater.needsDictionary()) {
+						byte[] dictionary = dictionaries.get(inflater.getAdler());
+						if (dictionary == null)
+							throw new IOException(String.format("Unknown compression dictionary %08x.", inflater.getAdler()));
+						inflater.setDictionary(dictionary);
+					} else if (inflater.needsInput())
+						throw new IOException("Truncated compressed message.");
+				}
+			}
+			if (pos != length)
+				throw new IOException("Compressed message is shorter than expected.");
+			return out;
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt compressed message.", e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Builds a dictionary from sample messages.
+	 * <p>
+	 * Lines (split after newlines and HTML tags) occurring in more than one
+	 * sample are scored by the number of
+	 * bytes they would save, and the best ones are packed into the
+	 * dictionary (best last, since Deflate matches nearer data more cheaply).
+	 * @param samples the sample messages
+	 * @param maxSize the maximum dictionary size (at most {@link #MAX_DICTIONARY_SIZE})
+	 * @return the dictionary (empty if no lines recur)
+	 */
+	public static byte[] train(List<byte[]> samples, int maxSize) {
+		maxSize = Math.min(maxSize, MAX_DICTIONARY_SIZE);
+
+		// count the number of samples containing each line or tag
+		final Map<String, Integer> counts = new HashMap<String, Integer>();
+		for (byte[] sample : samples) {
+			Set<String> seen = new HashSet<String>();
+			int start = 0;
+			for (int i = 0; i < sample.length; i++) {
+				if (sample[i] == '\n' || sample[i] == '>' || i == sample.length - 1) {
+					int len = i + 1 - start;
+					if (len >= MIN_LINE_LENGTH && len <= MAX_LINE_LENGTH) {
+						// ISO-8859-1 maps bytes to chars one-to-one
+						String line = new String(sample, start, len, StandardCharsets.ISO_8859_1);
+						if (seen.add(line)) {
+							Integer count = counts.get(line);
+							counts.put(line, (count == null) ? 1 : count + 1);
+						}
+					}
+					start = i + 1;
+				}
+			}
+		}
+
+		// pick the highest-scoring recurring lines
+		List<String> lines = new ArrayList<String>();
+		for (Map.Entry<String, Integer> e : counts.entrySet()) {
+			if (e.getValue() > 1)
+				lines.add(e.getKey());
+		}
+		Collections.sort(lines, (a, b) -> {
+			long sa = (long) (counts.get(a) - 1) * a.length(), sb = (long) (counts.get(b) - 1) * b.length();
+			return (sa != sb) ? Long.compare(sb, sa) : a.compareTo(b);
+		});
+		List<String> selected = new ArrayList<String>();
+		int size = 0;
+		for (String line : lines) {
+			if (size + line.length() > maxSize)
+				continue;
+			selected.add(line);
+			size += line.length();
+		}
+
+		// write the best lines last
+		StringBuilder sb = new StringBuilder(size);
+		for (int i = selected.size() - 1; i >= 0; i--)
+			sb.append(selected.get(i));
+		return sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+	}
+}
@@ -8,11 +8,19 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.Lock;
 
 import org.apache.commons.dbcp2.BasicDataSource;
 
+import com.google.common.hash.HashCode;
+
 /**
  * Database connection manager.
  */
@@ -26,22 +34,65 @@ public class MailDB {
 	/** Maximum allowed length of a domain name. */
 	private static final int MAX_DOMAIN_LENGTH = 255;
 
+	/** Time (in seconds) a leased link group is reserved before it can be handed out again. */
+	public static final int LINK_GROUP_LEASE_TIME = 600;
+
+	/** Number of users to fetch per query when loading the in-memory indexes. */
+	private static final int USER_LOAD_BATCH_SIZE = 1000;
+
 	/** The data source. */
 	private final BasicDataSource dataSource;
 
 	/** The organization domains manager. */
 	private final OrganizationDomains orgs;
 
+	/** The reverse index of encoded email addresses. */
+	private final EncodingIndex encodingIndex;
+
+	/** The in-memory recipient registry. */
+	private final RecipientRegistry registry;
+
+	/** The write-behind buffer for leaked email addresses. */
+	private final LeakSink leakSink;
+
+	/** The accumulator for per-user counters. */
+	private final UserCounters counters;
+
 	/** Represents a mail user. */
 	public class MailUser {
 		private final int id, emailCount, leakCount, tpLeakCount;
 		private final String email, site, url, urlDomain;
 		private final Date ts;
 
-		/** Constructor. */
+		/** The accumulated counter totals already reflected in the counts. */
+		private final int[] counterTotals;
+
+		/**
+		 * Constructor (counts as read from the database, while holding the
+		 * {@link UserCounters#getReadLock() counters read lock}).
+		 */
 		public MailUser(
 			int id, String email, String site, String url, String urlDomain, Date ts,
 			int emailCount, int leakCount, int tpLeakCount
+		) {
+			// add the increments not yet written to the database
+			int[] snapshot = counters.getSnapshot(id);
+			this.id = id;
+			this.email = email;
+			this.site = site;
+			this.url = url;
+			this.urlDomain = urlDomain;
+			this.ts = ts;
+			this.emailCount = emailCount + snapshot[UserCounters.EMAILS_RECEIVED];
+			this.leakCount = leakCount + snapshot[UserCounters.LEAKS];
+			this.tpLeakCount = tpLeakCount + snapshot[UserCounters.THIRD_PARTY_LEAKS];
+			this.counterTotals = Arrays.copyOfRange(snapshot, UserCounters.COUNTERS, UserCounters.COUNTERS * 2);
+		}
+
+		/** Constructor. */
+		private MailUser(
+			int id, String email, String site, String url, String urlDomain, Date ts,
+			int emailCount, int leakCount, int tpLeakCount, int[] counterTotals
 		) {
 			this.id = id;
 			this.email = email;
@@ -52,6 +103,21 @@ public class MailDB {
 			this.emailCount = emailCount;
 			this.leakCount = leakCount;
 			this.tpLeakCount = tpLeakCount;
+			this.counterTotals = counterTotals;
+		}
+
+		/** Returns a copy of this record including all counter increments made since it was created. */
+		private MailUser refresh() {
+			int[] totals = counters.getTotals(id);
+			if (Arrays.equals(totals, counterTotals))
+				return this;
+			return new MailUser(
+				id, email, site, url, urlDomain, ts,
+				emailCount + totals[UserCounters.EMAILS_RECEIVED] - counterTotals[UserCounters.EMAILS_RECEIVED],
+				leakCount + totals[UserCounters.LEAKS] - counterTotals[UserCounters.LEAKS],
+				tpLeakCount + totals[UserCounters.THIRD_PARTY_LEAKS] - counterTotals[UserCounters.THIRD_PARTY_LEAKS],
+				totals
+			);
 		}
 
 		/** Returns the unique user ID. */
@@ -72,13 +138,13 @@ public class MailDB {
 		/** Returns the registration date. */
 		public Date getRegistrationDate() { return ts; }
 
-		/** Returns the number of emails this user received (may be out of date). */
+		/** Returns the number of emails this user received, as of when this record was retrieved. */
 		public int getReceivedEmailCount() { return emailCount; }
 
-		/** Returns the number of times the user's email address was leaked (may be out of date). */
+		/** Returns the number of times the user's email address was leaked, as of when this record was retrieved. */
 		public int getLeakCount() { return leakCount; }
 
-		/** Returns the number of times the user's email address was leaked to a third party (may be out of date). */
+		/** Returns the number of times the user's email address was leaked to a third party, as of when this record was retrieved. */
 		public int getThirdPartyLeakCount() { return tpLeakCount; }
 	}
 
@@ -121,8 +187,22 @@ public class MailDB {
 		dataSource.setUrl(url);
 		dataSource.setUsername(username);
 		dataSource.setPassword(password);
+		dataSource.addConnectionProperty("rewriteBatchedStatements", "true");  // multi-row inserts for batches
 
 		this.orgs = new OrganizationDomains();
+		this.encodingIndex = new EncodingIndex();
+		this.registry = new RecipientRegistry();
+		this.counters = new UserCounters(this);
+		this.leakSink = new LeakSink(this);
+	}
+
+	/** Flushes all buffered writes and closes the connection pool. */
+	public void close() {
+		leakSink.shutdown();
+		counters.shutdown();
+		try {
+			dataSource.close();
+		} catch (SQLException e) {}
 	}
 
 	/** Returns a database connection. */
@@ -130,6 +210,34 @@ public class MailDB {
 		return dataSource.getConnection();
 	}
 
+	/** Returns the reverse index of encoded email addresses. */
+	public EncodingIndex getEncodingIndex() { return encodingIndex; }
+
+	/** Returns the write-behind buffer for leaked email addresses. */
+	public LeakSink getLeakSink() { return leakSink; }
+
+	/** Returns the in-memory recipient registry. */
+	public RecipientRegistry getRecipientRegistry() { return registry; }
+
+	/** Returns the accumulator for per-user counters. */
+	public UserCounters getUserCounters() { return counters; }
+
+	/** Loads all users into the in-memory indexes, in batches. */
+	public void loadIndexes() throws SQLException {
+		int lastId = 0;
+		while (true) {
+			List<MailUser> users = getUsers(lastId, USER_LOAD_BATCH_SIZE);
+			for (MailUser user : users) {
+				encodingIndex.add(user.getId(), user.getEmail());
+				registry.add(user.getEmail());
+				lastId = user.getId();
+			}
+			if (users.size() < USER_LOAD_BATCH_SIZE)
+				break;
+		}
+		registry.setLoaded();
+	}
+
 	/** Truncates the given URL if it is too long. */
 	private String truncateUrl(String url) {
 		if (url.length() <= MAX_URL_LENGTH)
@@ -139,32 +247,60 @@ public class MailDB {
 		return url.substring(0, MAX_URL_LENGTH - marker.length()) + marker;
 	}
 
-	/** Adds a mail entry to the database. */
+	/** Adds a mail entry to the database ({@code location} is a mail store locator or file name). */
 	public void addMailEntry(
-		String recipient,
+		MailUser recipient,
 		String sender,
 		Date sentDate,
 		String subject,
-		String filename
+		String location
 	) throws SQLException {
 		try (
 			Connection connection = getConnection();
 			PreparedStatement stmt = connection.prepareStatement(
 				"INSERT INTO `inbox` VALUES(?, ?, ?, ?, ?)"
 			);
-			PreparedStatement stmtUpdate = connection.prepareStatement(
-				"UPDATE `users` SET `emails_received` = `emails_received` + 1 WHERE `email` = ?"
-			);
 		) {
-			stmt.setString(1, recipient);
+			stmt.setString(1, recipient.getEmail());
 			stmt.setString(2, sender);
 			stmt.setTimestamp(3, sentDate == null ? null : new Timestamp(sentDate.getTime()));
 			stmt.setString(4, subject);
-			stmt.setString(5, filename);
+			stmt.setString(5, location);
 			stmt.executeUpdate();
+		}
+		counters.add(recipient.getId(), UserCounters.EMAILS_RECEIVED, 1);
+	}
 
-			stmtUpdate.setString(1, recipient);
-			stmtUpdate.executeUpdate();
+	/** Returns the locations (mail store locators or file names) of all mail entries for a recipient. */
+	public List<String> getMailLocations(String recipient) throws SQLException {
+		try (
+			Connection connection = getConnection();
+			PreparedStatement stmt = connection.prepareStatement(
+				"SELECT `filename` FROM `inbox` WHERE `recipient` = ?"
+			);
+		) {
+			stmt.setString(1, recipient);
+			List<String> locations = new ArrayList<String>();
+			try (ResultSet rs = stmt.executeQuery()) {
+				while (rs.next())
+					locations.add(rs.getString(1));
+			}
+			return locations;
+		}
+	}
+
+	/** Changes the location of a mail entry (e.g. after moving it into the mail store). */
+	public void updateMailLocation(String recipient, String oldLocation, String newLocation) throws SQLException {
+		try (
+			Connection connection = getConnection();
+			PreparedStatement stmt = connection.prepareStatement(
+				"UPDATE `inbox` SET `filename` = ? WHERE `recipient` = ? AND `filename` = ?"
+			);
+		) {
+			stmt.setString(1, newLocation);
+			stmt.setString(2, recipient);
+			stmt.setString(3, oldLocation);
+			stmt.executeUpdate();
 		}
 	}
 
@@ -207,59 +343,112 @@ public class MailDB {
 		}
 	}
 
-	/** Adds a URL containing an email address to the database. */
-	public void addLeakedEmailAddress(
-		String url,
-		String type,
-		String encoding,
-		boolean isRedirect,
-		boolean isIntentional,
-		String senderDomain,
-		String senderAddress,
-		int recipientId
-	) throws SQLException {
+	/**
+	 * Queues a URL containing an email address to be added to the database.
+	 * @see #addLeakedEmailAddresses(List)
+	 */
+	public void addLeakedEmailAddress(LeakRecord leak) {
+		leakSink.add(leak);
+	}
+
+	/**
+	 * Adds URLs containing email addresses to the database, as a single batch.
+	 * Records already in the database (by ID) are skipped, so a batch can be
+	 * retried after a partial failure.
+	 */
+	public void addLeakedEmailAddresses(List<LeakRecord> leaks) throws SQLException {
+		if (leaks.isEmpty())
+			return;
+		boolean[] thirdParty = new boolean[leaks.size()];
 		try (
 			Connection connection = getConnection();
 			PreparedStatement stmt = connection.prepareStatement(
-				"INSERT INTO `leaked_emails` VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, ?)"
-			);
-			PreparedStatement stmtUpdate = connection.prepareStatement(
-				"UPDATE `users` SET `leak_count` = `leak_count` + 1 WHERE `id` = ?"
+				"INSERT IGNORE INTO `leaked_emails` VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)"
 			);
 		) {
-			stmt.setString(1, senderDomain);
-			stmt.setString(2, senderAddress);
-			stmt.setInt(3, recipientId);
-			stmt.setString(4, encoding);
-			stmt.setString(5, truncateUrl(url));
-			String urlDomain;
-			try {
-				urlDomain = Utils.getDomainName(url);
-				if (urlDomain.length() > MAX_DOMAIN_LENGTH)
+			for (int i = 0; i < leaks.size(); i++) {
+				LeakRecord leak = leaks.get(i);
+				stmt.setString(1, leak.senderDomain);
+				stmt.setString(2, leak.senderAddress);
+				stmt.setInt(3, leak.recipientId);
+				stmt.setString(4, leak.encoding);
+				stmt.setString(5, truncateUrl(leak.url));
+				String urlDomain;
+				try {
+					urlDomain = Utils.getDomainName(leak.url);
+					if (urlDomain.length() > MAX_DOMAIN_LENGTH)
+						urlDomain = "";
+				} catch (Exception e) {
 					urlDomain = "";
-			} catch (Exception e) {
-				urlDomain = "";
+				}
+				stmt.setString(6, urlDomain);
+				stmt.setString(7, urlDomain.isEmpty() ? null : orgs.getOrganizationForDomain(urlDomain));
+				stmt.setString(8, leak.type);
+				stmt.setBoolean(9, leak.isRedirect);
+				stmt.setBoolean(10, leak.isIntentional);
+				stmt.setBytes(11, leak.id);
+				stmt.addBatch();
+				thirdParty[i] = !urlDomain.isEmpty() && !leak.senderDomain.equals(urlDomain);
 			}
-			stmt.setString(6, urlDomain);
-			stmt.setString(7, urlDomain.isEmpty() ? null : orgs.getOrganizationForDomain(urlDomain));
-			stmt.setString(8, type);
-			stmt.setBoolean(9, isRedirect);
-			stmt.setBoolean(10, isIntentional);
-			stmt.executeUpdate();
+			stmt.executeBatch();
+		}
 
-			stmtUpdate.setInt(1, recipientId);
-			stmtUpdate.executeUpdate();
-
-			if (!urlDomain.isEmpty() && !senderDomain.equals(urlDomain)) {
-				try (
-					PreparedStatement stmtUpdateTp = connection.prepareStatement(
-						"UPDATE `users` SET `tp_leak_count` = `tp_leak_count` + 1 WHERE `id` = ?"
-					);
-				) {
-					stmtUpdateTp.setInt(1, recipientId);
-					stmtUpdateTp.executeUpdate();
-				}
+		// update counters
+		for (int i = 0; i < leaks.size(); i++) {
+			int recipientId = leaks.get(i).recipientId;
+			counters.add(recipientId, UserCounters.LEAKS, 1);
+			if (thirdParty[i])
+				counters.add(recipientId, UserCounters.THIRD_PARTY_LEAKS, 1);
+		}
+	}
+
+	/** Returns the leak records (from the given list) whose IDs are already in the database. */
+	public Set<LeakRecord> getExistingLeaks(List<LeakRecord> leaks) throws SQLException {
+		Set<LeakRecord> existing = new HashSet<LeakRecord>();
+		if (leaks.isEmpty())
+			return existing;
+		StringBuilder sql = new StringBuilder("SELECT `leak_id` FROM `leaked_emails` WHERE `leak_id` IN (");
+		for (int i = 0; i < leaks.size(); i++)
+			sql.append((i == 0) ? "?" : ", ?");
+		sql.append(')');
+		try (
+			Connection connection = getConnection();
+			PreparedStatement stmt = connection.prepareStatement(sql.toString());
+		) {
+			for (int i = 0; i < leaks.size(); i++)
+				stmt.setBytes(i + 1, leaks.get(i).id);
+			Set<HashCode> ids = new HashSet<HashCode>();
+			try (ResultSet rs = stmt.executeQuery()) {
+				while (rs.next())
+					ids.add(HashCode.fromBytes(rs.getBytes(1)));
+			}
+			for (LeakRecord leak : leaks) {
+				if (ids.contains(HashCode.fromBytes(leak.id)))
+					existing.add(leak);
+			}
+		}
+		return existing;
+	}
+
+	/** Adds the given increments (by {@link UserCounters} index) to the user counters in the database, as a single batch. */
+	public void updateUserCounters(Map<Integer, int[]> deltas) throws SQLException {
+		if (deltas.isEmpty())
+			return;
+		try (
+			Connection connection = getConnection();
+			PreparedStatement stmt = connection.prepareStatement(
+				"UPDATE `users` SET `emails_received` = `emails_received` + ?, `leak_count` = `leak_count` + ?, `tp_leak_count` = `tp_leak_count` + ? WHERE `id` = ?"
+			);
+		) {
+			for (Map.Entry<Integer, int[]> entry : deltas.entrySet()) {
+				int[] delta = entry.getValue();
+				stmt.setInt(1, delta[UserCounters.EMAILS_RECEIVED]);
+				stmt.setInt(2, delta[UserCounters.LEAKS]);
+				stmt.setInt(3, delta[UserCounters.THIRD_PARTY_LEAKS]);
+				stmt.setInt(4, entry.getKey());
+				stmt.addBatch();
 			}
+			stmt.executeBatch();
 		}
 	}
 
@@ -268,7 +457,8 @@ public class MailDB {
 		try (
 			Connection connection = getConnection();
 			PreparedStatement stmt = connection.prepareStatement(
-				"INSERT IGNORE INTO `users` (`email`, `register_site`, `register_url`, `register_domain`) VALUES(?, ?, ?, ?)"
+				"INSERT IGNORE INTO `users` (`email`, `register_site`, `register_url`, `register_domain`) VALUES(?, ?, ?, ?)",
+				Statement.RETURN_GENERATED_KEYS
 			);
 		) {
 			stmt.setString(1, email);
@@ -280,12 +470,25 @@ public class MailDB {
 				stmt.setString(4, "");
 			}
 			int rows = stmt.executeUpdate();
-			return rows > 0;
+			if (rows == 0)
+				return false;
+			registry.add(email);
+			try (ResultSet rs = stmt.getGeneratedKeys()) {
+				if (rs.next())
+					encodingIndex.add(rs.getInt(1), email);
+			}
+			return true;
 		}
 	}
 
 	/** Returns whether the given user exists. */
 	public boolean userExists(String email) throws SQLException {
+		// check in-memory registry first
+		if (!registry.mightContain(email))
+			return false;
+		if (registry.getUser(email) != null)
+			return true;
+
 		try (
 			Connection connection = getConnection();
 			PreparedStatement stmt = connection.prepareStatement(
@@ -293,7 +496,6 @@ public class MailDB {
 			);
 		) {
 			stmt.setString(1, email);
-			stmt.executeQuery();
 			try (ResultSet rs = stmt.executeQuery()) {
 				return rs.next() ? rs.getBoolean(1) : false;
 			}
@@ -302,6 +504,15 @@ public class MailDB {
 
 	/** Returns user data for the given email address, or null if it does not exist. */
 	public MailUser getUserInfo(String email) throws SQLException {
+		// check in-memory registry first
+		if (!registry.mightContain(email))
+			return null;
+		MailUser user = registry.getUser(email);
+		if (user != null)
+			return user.refresh();
+
+		Lock lock = counters.getReadLock();  // counts must match the pending increments
+		lock.lock();
 		try (
 			Connection connection = getConnection();
 			PreparedStatement stmt = connection.prepareStatement(
@@ -309,16 +520,22 @@ public class MailDB {
 			);
 		) {
 			stmt.setString(1, email);
-			stmt.executeQuery();
 			try (ResultSet rs = stmt.executeQuery()) {
-				return (!rs.next()) ? null :
-					new MailUser(rs.getInt(1), email, rs.getString(2), rs.getString(3), rs.getString(4), rs.getTimestamp(5), rs.getInt(6), rs.getInt(7), rs.getInt(8));
+				if (!rs.next())
+					return null;
+				user = new MailUser(rs.getInt(1), email, rs.getString(2), rs.getString(3), rs.getString(4), rs.getTimestamp(5), rs.getInt(6), rs.getInt(7), rs.getInt(8));
+				registry.putUser(user);
+				return user;
 			}
+		} finally {
+			lock.unlock();
 		}
 	}
 
 	/** Returns user data for the given user ID, or null if it does not exist. */
 	public MailUser getUserInfo(int id) throws SQLException {
+		Lock lock = counters.getReadLock();  // counts must match the pending increments
+		lock.lock();
 		try (
 			Connection connection = getConnection();
 			PreparedStatement stmt = connection.prepareStatement(
@@ -326,16 +543,19 @@ public class MailDB {
 			);
 		) {
 			stmt.setInt(1, id);
-			stmt.executeQuery();
 			try (ResultSet rs = stmt.executeQuery()) {
 				return (!rs.next()) ? null :
 					new MailUser(id, rs.getString(1), rs.getString(2), rs.getString(3), rs.getString(4), rs.getTimestamp(5), rs.getInt(6), rs.getInt(7), rs.getInt(8));
 			}
+		} finally {
+			lock.unlock();
 		}
 	}
 
 	/** Returns a list of all user data. */
 	public List<MailUser> getUsers() throws SQLException {
+		Lock lock = counters.getReadLock();  // counts must match the pending increments
+		lock.lock();
 		try (
 			Connection connection = getConnection();
 			Statement stmt = connection.createStatement();
@@ -347,6 +567,31 @@ public class MailDB {
 					users.add(new MailUser(rs.getInt(1), rs.getString(2), rs.getString(3), rs.getString(4), rs.getString(5), rs.getTimestamp(6), rs.getInt(7), rs.getInt(8), rs.getInt(9)));
 			}
 			return users;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Returns user data for up to {@code limit} users with IDs greater than {@code afterId}, in ID order. */
+	public List<MailUser> getUsers(int afterId, int limit) throws SQLException {
+		Lock lock = counters.getReadLock();  // counts must match the pending increments
+		lock.lock();
+		try (
+			Connection connection = getConnection();
+			PreparedStatement stmt = connection.prepareStatement(
+				"SELECT `id`, `email`, `register_site`, `register_url`, `register_domain`, `register_time`, `emails_received`, `leak_count`, `tp_leak_count` FROM `users` WHERE `id` > ? ORDER BY `id` LIMIT ?"
+			);
+		) {
+			stmt.setInt(1, afterId);
+			stmt.setInt(2, limit);
+			List<MailUser> users = new ArrayList<MailUser>();
+			try (ResultSet rs = stmt.executeQuery()) {
+				while (rs.next())
+					users.add(new MailUser(rs.getInt(1), rs.getString(2), rs.getString(3), rs.getString(4), rs.getString(5), rs.getTimestamp(6), rs.getInt(7), rs.getInt(8), rs.getInt(9)));
+			}
+			return users;
+		} finally {
+			lock.unlock();
 		}
 	}
 
@@ -371,19 +616,81 @@ public class MailDB {
 		}
 	}
 
-	/** Retrieves a random group of links from the database, or null if none exists. */
-	public LinkGroup getLinkGroup() throws SQLException {
+	/**
+	 * Leases up to {@code count} groups of links from the database.
+	 * <p>
+	 * Groups whose lease expired are claimed first (oldest first), then
+	 * never-leased groups from a random ID onwards. Both are claimed through
+	 * the index on ({@code lease_expires}, {@code id}), so leased groups are
+	 * never scanned. The random ID is uniform over the never-leased groups'
+	 * ID range, so a group following a gap in their IDs (i.e. removed or
+	 * leased groups) is more likely to be picked than others.
+	 * <p>
+	 * A leased group is not handed out again until its lease expires (after
+	 * {@link #LINK_GROUP_LEASE_TIME} seconds), unless it is removed first.
+	 */
+	public List<LinkGroup> leaseLinkGroups(int count) throws SQLException {
+		long token = ThreadLocalRandom.current().nextLong();
 		try (
 			Connection connection = getConnection();
-			Statement stmt = connection.createStatement();
+			Statement stmtRange = connection.createStatement();
+			PreparedStatement stmtExpired = connection.prepareStatement(
+				"UPDATE `link_groups` SET `lease_token` = ?, `lease_expires` = NOW() + INTERVAL ? SECOND " +
+				"WHERE `lease_expires` < NOW() ORDER BY `lease_expires` LIMIT ?"
+			);
+			PreparedStatement stmtLease = connection.prepareStatement(
+				"UPDATE `link_groups` SET `lease_token` = ?, `lease_expires` = NOW() + INTERVAL ? SECOND " +
+				"WHERE `lease_expires` IS NULL AND `id` >= ? ORDER BY `id` LIMIT ?"
+			);
+			PreparedStatement stmt = connection.prepareStatement(
+				"SELECT `id`, `sender_domain`, `sender_address`, `recipient_id`, `urls` FROM `link_groups` WHERE `lease_token` = ?"
+			);
 		) {
-			String sql = "SELECT `id`, `sender_domain`, `sender_address`, `recipient_id`, `urls` FROM `link_groups` ORDER BY RAND() LIMIT 1";
-			try (ResultSet rs = stmt.executeQuery(sql)) {
-				if (!rs.next())
-					return null;
-				String[] urls = rs.getString(5).split(Character.toString(URL_DELIMITER));
-				return new LinkGroup(rs.getInt(1), rs.getString(2), rs.getString(3), rs.getInt(4), urls);
+			// reclaim groups whose lease expired
+			stmtExpired.setLong(1, token);
+			stmtExpired.setInt(2, LINK_GROUP_LEASE_TIME);
+			stmtExpired.setInt(3, count);
+			int leased = stmtExpired.executeUpdate();
+
+			if (leased < count) {
+				// pick a random starting ID among never-leased groups (uses the index only)
+				int minId = 0, maxId = 0;
+				boolean found;
+				try (ResultSet rs = stmtRange.executeQuery("SELECT MIN(`id`), MAX(`id`) FROM `link_groups` WHERE `lease_expires` IS NULL")) {
+					found = rs.next();
+					if (found) {
+						minId = rs.getInt(1);
+						maxId = rs.getInt(2);
+						found = !rs.wasNull();
+					}
+				}
+				if (found) {
+					int startId = minId + ThreadLocalRandom.current().nextInt(maxId - minId + 1);
+
+					// claim groups from the starting ID, wrapping around if there aren't enough
+					stmtLease.setLong(1, token);
+					stmtLease.setInt(2, LINK_GROUP_LEASE_TIME);
+					stmtLease.setInt(3, startId);
+					stmtLease.setInt(4, count - leased);
+					leased += stmtLease.executeUpdate();
+					if (leased < count && startId > minId) {
+						stmtLease.setInt(3, minId);
+						stmtLease.setInt(4, count - leased);
+						stmtLease.executeUpdate();
+					}
+				}
+			}
+
+			// retrieve the claimed groups
+			stmt.setLong(1, token);
+			List<LinkGroup> linkGroups = new ArrayList<LinkGroup>();
+			try (ResultSet rs = stmt.executeQuery()) {
+				while (rs.next()) {
+					String[] urls = rs.getString(5).split(Character.toString(URL_DELIMITER));
+					linkGroups.add(new LinkGroup(rs.getInt(1), rs.getString(2), rs.getString(3), rs.getInt(4), urls));
+				}
 			}
+			return linkGroups;
 		}
 	}
 
@@ -396,7 +703,6 @@ public class MailDB {
 			);
 		) {
 			stmt.setInt(1, id);
-			stmt.executeQuery();
 			try (ResultSet rs = stmt.executeQuery()) {
 				if (!rs.next())
 					return null;
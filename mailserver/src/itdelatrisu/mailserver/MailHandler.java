@@ -39,24 +39,57 @@ public class MailHandler {
 	}
 
 	/** Handles the message. */
-	public void handleMessage(String from, String recipient, String data) {
+	public void handleMessage(String from, String recipient, ParsedMessage message) {
+		// store mail on disk
+		MailDB.MailUser user = store(from, recipient, message);
+		if (user == null)
+			return;
+
+		// analyze mail
+		MailAnalyzer.Analysis analysis = analyze(from, user, message);
+		if (analysis != null)
+			persist(analysis);
+	}
+
+	/**
+	 * Stores the message, and returns the recipient's user info
+	 * (or null if the message could not be stored).
+	 */
+	public MailDB.MailUser store(String from, String recipient, ParsedMessage message) {
 		// get user info
 		MailDB.MailUser user;
 		try {
 			user = db.getUserInfo(recipient);
 		} catch (SQLException e) {
 			logger.error("Failed to query database.", e);
-			return;
+			return null;
 		}
 		if (user == null) {
 			logger.error("No user entry for email '{}'.", recipient);
-			return;
+			return null;
 		}
 
 		// store mail on disk
-		storage.store(from, user, data);
+		storage.store(from, user, message);
+		return user;
+	}
 
-		// analyze mail
-		analyzer.analyze(from, user, data);
+	/** Analyzes the message, and returns the results (or null if not analyzed). */
+	public MailAnalyzer.Analysis analyze(String from, MailDB.MailUser user, ParsedMessage message) {
+		return analyzer.analyze(from, user, message);
+	}
+
+	/** Writes out the analysis results. */
+	public void persist(MailAnalyzer.Analysis analysis) {
+		analyzer.persist(analysis);
+	}
+
+	/** Returns the storage module. */
+	public MailStorage getStorage() { return storage; }
+
+	/** Shuts down the handler. */
+	public void shutdown() {
+		analyzer.shutdown();
+		storage.close();
 	}
 }
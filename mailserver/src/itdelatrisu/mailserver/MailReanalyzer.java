@@ -0,0 +1,344 @@
+package itdelatrisu.mailserver;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+
+/**
+ * Offline re-analysis of stored mail.
+ * <p>
+ * Walks the stored corpus (the mail store and any individually stored
+ * files), maps each message back to its recipient, and runs the analyzer on
+ * all messages in parallel on a fork-join pool. Results are written to a
+ * {@link Sink}: the database, or a file of JSON lines.
+ * <p>
+ * Usage: {@code java -cp mailserver.jar itdelatrisu.mailserver.MailReanalyzer
+ * (--db [--requests] | --output <file>) [--threads <n>]}
+ * <ul>
+ * <li>{@code --db}: records leaked email addresses in the database, skipping
+ *     those recorded by a previous run (and, with {@code --requests}, link
+ *     groups and tracking-image requests, journaled in {@code journal/reanalyzer.log})</li>
+ * <li>{@code --output <file>}: writes the results as JSON lines (no requests are made)</li>
+ * <li>{@code --threads <n>}: the parallelism (default: the number of cores)</li>
+ * </ul>
+ */
+public class MailReanalyzer {
+	private static final Logger logger = LoggerFactory.getLogger(MailReanalyzer.class);
+
+	/**
+	 * Journal of requests scheduled by re-analysis (kept apart from the
+	 * server's, which the server replays and compacts).
+	 */
+	private static final File JOURNAL_FILE = new File("journal", "reanalyzer.log");
+
+	/** Interval (in ms) between progress reports. */
+	private static final long REPORT_INTERVAL = 10000;
+
+	/** Destination for analysis results. */
+	public interface Sink extends Closeable {
+		/**
+		 * Writes the results of analyzing a message (called concurrently).
+		 * @param location the message location (mail store locator or file path)
+		 * @param analysis the analysis results
+		 */
+		void write(String location, MailAnalyzer.Analysis analysis) throws IOException;
+	}
+
+	/**
+	 * Sink writing results into the database (see {@link MailAnalyzer#persist(MailAnalyzer.Analysis)}).
+	 * <p>
+	 * Leak record IDs are derived from the message location and the leak, and
+	 * leaks already recorded by a previous run are skipped, so re-running only
+	 * adds new leaks. (Leaks recorded by the server itself have random IDs.)
+	 */
+	public static class DatabaseSink implements Sink {
+		private final MailDB db;
+		private final MailAnalyzer analyzer;
+
+		/** Creates a database sink using the given analyzer. */
+		public DatabaseSink(MailDB db, MailAnalyzer analyzer) {
+			this.db = db;
+			this.analyzer = analyzer;
+		}
+
+		@Override
+		public void write(String location, MailAnalyzer.Analysis analysis) throws IOException {
+			// replace the leaks with ones keyed by location, without those already recorded
+			List<LeakRecord> leaks = analysis.getLeaks();
+			List<LeakRecord> keyed = new ArrayList<LeakRecord>(leaks.size());
+			Map<HashCode, Integer> occurrences = new HashMap<HashCode, Integer>();
+			for (LeakRecord leak : leaks) {
+				HashCode key = Hashing.md5().newHasher()
+					.putInt(location.length()).putUnencodedChars(location)
+					.putInt(leak.url.length()).putUnencodedChars(leak.url)
+					.putInt(leak.encoding.length()).putUnencodedChars(leak.encoding)
+					.putInt(leak.type.length()).putUnencodedChars(leak.type)
+					.putBoolean(leak.isRedirect)
+					.putInt(leak.recipientId)
+					.hash();
+				Integer n = occurrences.get(key);
+				occurrences.put(key, (n == null) ? 1 : n + 1);
+				byte[] id = Hashing.md5().newHasher().putBytes(key.asBytes()).putInt((n == null) ? 0 : n).hash().asBytes();
+				keyed.add(new LeakRecord(
+					leak.url, leak.type, leak.encoding, leak.isRedirect, leak.isIntentional,
+					leak.senderDomain, leak.senderAddress, leak.recipientId, id
+				));
+			}
+			try {
+				keyed.removeAll(db.getExistingLeaks(keyed));
+			} catch (SQLException e) {
+				throw new IOException("Failed to look up recorded leaks.", e);
+			}
+			leaks.clear();
+			leaks.addAll(keyed);
+			analyzer.persist(analysis);
+		}
+
+		@Override
+		public void close() {}  // the analyzer is shut down by its owner
+	}
+
+	/** Sink writing results to a file, one JSON object per line. */
+	public static class FileSink implements Sink {
+		private final Writer out;
+
+		/** Creates a file sink, overwriting the file. */
+		public FileSink(File file) throws IOException {
+			this.out = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8);
+		}
+
+		@Override
+		public void write(String location, MailAnalyzer.Analysis analysis) throws IOException {
+			JSONArray leaks = new JSONArray();
+			for (LeakRecord leak : analysis.getLeaks()) {
+				leaks.put(new JSONObject()
+					.put("url", leak.url)
+					.put("type", leak.type)
+					.put("encoding", leak.encoding)
+					.put("recipient_id", leak.recipientId));
+			}
+			String line = new JSONObject()
+				.put("location", location)
+				.put("recipient_id", analysis.getRecipientId())
+				.put("sender", analysis.getSender())
+				.put("sender_domain", analysis.getSenderDomain())
+				.put("leaks", leaks)
+				.put("link_groups", new JSONArray(analysis.getLinkGroups()))
+				.put("image_requests", new JSONArray(analysis.getImageRequests()))
+				.toString();
+			synchronized (this) {
+				out.write(line);
+				out.write('\n');
+			}
+		}
+
+		@Override
+		public synchronized void close() throws IOException { out.close(); }
+	}
+
+	/** A stored message. */
+	private static class Item {
+		private final MailDB.MailUser user;
+		private final String locator;  // if in the mail store
+		private final File file;  // if stored individually
+
+		/** Constructor. */
+		private Item(MailDB.MailUser user, String locator, File file) {
+			this.user = user;
+			this.locator = locator;
+			this.file = file;
+		}
+	}
+
+	/** The analyzer. */
+	private final MailAnalyzer analyzer;
+
+	/** The result sink. */
+	private final Sink sink;
+
+	/** The mail store (or null if none). */
+	private final MailStore store;
+
+	/** Progress counters. */
+	private final AtomicLong processed = new AtomicLong(), failed = new AtomicLong(), leaks = new AtomicLong();
+
+	/**
+	 * Creates a re-analyzer.
+	 * @param analyzer the analyzer
+	 * @param sink the result sink
+	 * @param store the mail store to read from (or null if none)
+	 */
+	public MailReanalyzer(MailAnalyzer analyzer, Sink sink, MailStore store) {
+		this.analyzer = analyzer;
+		this.sink = sink;
+		this.store = store;
+	}
+
+	/**
+	 * Re-analyzes all stored mail.
+	 * @param db the database instance (used to map messages to users)
+	 * @param mailDir the root mail directory
+	 * @param parallelism the number of worker threads
+	 */
+	public void run(MailDB db, File mailDir, int parallelism) throws SQLException, IOException, InterruptedException {
+		List<Item> items = listItems(db, mailDir);
+		logger.info("Re-analyzing {} messages on {} threads...", items.size(), parallelism);
+
+		// report progress periodically
+		final long start = System.currentTimeMillis();
+		ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+		reporter.scheduleAtFixedRate(() -> report(start, items.size()), REPORT_INTERVAL, REPORT_INTERVAL, TimeUnit.MILLISECONDS);
+
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			pool.submit(() -> items.parallelStream().forEach(this::process)).get();
+		} catch (ExecutionException e) {
+			throw new IOException("Re-analysis failed.", e.getCause());
+		} finally {
+			pool.shutdown();
+			reporter.shutdownNow();
+		}
+		report(start, items.size());
+	}
+
+	/** Logs the progress. */
+	private void report(long start, int total) {
+		long elapsed = Math.max(System.currentTimeMillis() - start, 1);
+		logger.info("Re-analyzed {}/{} messages ({} failed, {} leaks) at {} messages/sec.",
+			processed.get(), total, failed.get(), leaks.get(), String.format("%.1f", processed.get() * 1000.0 / elapsed));
+	}
+
+	/** Analyzes a message, and writes the results to the sink. */
+	private void process(Item item) {
+		String location = (item.locator != null) ? item.locator : item.file.getPath();
+		try (ParsedMessage message = (item.locator != null) ?
+			new ParsedMessage(store.read(item.locator)) : new ParsedMessage(item.file, false)) {
+			MailAnalyzer.Analysis analysis = analyzer.analyze(getSender(message), item.user, message);
+			if (analysis != null) {
+				sink.write(location, analysis);
+				leaks.addAndGet(analysis.getLeaks().size());
+			}
+		} catch (Exception e) {
+			logger.error(String.format("Failed to re-analyze message '%s'.", location), e);
+			failed.incrementAndGet();
+		}
+		processed.incrementAndGet();
+	}
+
+	/** Returns the sender address of a message (the envelope sender is not stored). */
+	private static String getSender(ParsedMessage message) throws MessagingException {
+		Address[] from = message.getMimeMessage().getFrom();
+		if (from == null || from.length == 0)
+			return "";
+		return (from[0] instanceof InternetAddress) ? ((InternetAddress) from[0]).getAddress() : from[0].toString();
+	}
+
+	/** Lists all stored messages, mapped to their recipients. */
+	private List<Item> listItems(MailDB db, File mailDir) throws SQLException, IOException {
+		Map<Integer, MailDB.MailUser> usersById = new HashMap<Integer, MailDB.MailUser>();
+		Map<String, MailDB.MailUser> usersByDir = new HashMap<String, MailDB.MailUser>();
+		for (MailDB.MailUser user : db.getUsers()) {
+			usersById.put(user.getId(), user);
+			usersByDir.put(MailStorage.getUserDir(mailDir, user.getEmail()).getName(), user);
+		}
+
+		List<Item> items = new ArrayList<Item>();
+		int unmapped = 0;
+		if (store != null) {
+			for (MailStore.Entry entry : store.list()) {
+				MailDB.MailUser user = usersById.get(entry.recipientId);
+				if (user != null)
+					items.add(new Item(user, entry.locator, null));
+				else
+					unmapped++;
+			}
+		}
+		File[] dirs = mailDir.listFiles();
+		if (dirs != null) {
+			for (File dir : dirs) {
+				if (!dir.isDirectory() || dir.getName().equals(MailStorage.STORE_DIR))
+					continue;
+				MailDB.MailUser user = usersByDir.get(dir.getName());
+				File[] files = dir.listFiles();
+				if (files == null)
+					continue;
+				for (File file : files) {
+					if (!file.getName().endsWith(".eml"))
+						continue;
+					if (user != null)
+						items.add(new Item(user, null, file));
+					else
+						unmapped++;
+				}
+			}
+		}
+		if (unmapped > 0)
+			logger.warn("Skipping {} messages with no matching user.", unmapped);
+		return items;
+	}
+
+	public static void main(String[] args) throws Exception {
+		boolean toDatabase = false, requests = false, usage = false;
+		File output = null;
+		int threads = Runtime.getRuntime().availableProcessors();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--db"))
+				toDatabase = true;
+			else if (args[i].equals("--requests"))
+				requests = true;
+			else if (args[i].equals("--output") && i + 1 < args.length)
+				output = new File(args[++i]);
+			else if (args[i].equals("--threads") && i + 1 < args.length)
+				threads = Integer.parseInt(args[++i]);
+			else
+				usage = true;
+		}
+		if (usage || toDatabase == (output != null)) {
+			System.err.println("Usage: MailReanalyzer (--db [--requests] | --output <file>) [--threads <n>]");
+			System.exit(1);
+		}
+
+		MailDB db = Launcher.createDatabase();
+		db.loadIndexes();
+		File mailDir = MailStorage.DEFAULT_MAIL_DIR;
+		File storeDir = new File(mailDir, MailStorage.STORE_DIR);
+		MailStore store = storeDir.isDirectory() ? new MailStore(storeDir, true) : null;
+		MailAnalyzer analyzer = new MailAnalyzer(db, toDatabase && requests, JOURNAL_FILE);
+		Sink sink = toDatabase ? new DatabaseSink(db, analyzer) : new FileSink(output);
+		try {
+			new MailReanalyzer(analyzer, sink, store).run(db, mailDir, threads);
+		} finally {
+			sink.close();
+			analyzer.shutdown();
+			if (store != null)
+				store.close();
+			db.close();
+		}
+	}
+}
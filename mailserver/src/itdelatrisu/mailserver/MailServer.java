@@ -5,6 +5,7 @@ import java.io.InputStream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.subethamail.smtp.RejectException;
 import org.subethamail.smtp.TooMuchDataException;
 import org.subethamail.smtp.helper.SimpleMessageListener;
 import org.subethamail.smtp.helper.SimpleMessageListenerAdapter;
@@ -16,32 +17,89 @@ import org.subethamail.smtp.server.SMTPServer;
 public class MailServer extends SMTPServer {
 	private static final Logger logger = LoggerFactory.getLogger(MailServer.class);
 
+	/** SMTP reply code for a temporary failure due to insufficient resources. */
+	private static final int SMTP_TEMPORARY_FAILURE = 451;
+
+	/** The message spool. */
+	private final MessageSpool spool;
+
+	/** The ingest pipeline. */
+	private final IngestPipeline pipeline;
+
 	/** SMTP message listener. */
 	private static class MessageListener implements SimpleMessageListener {
-		private final MailHandler handler;
-		public MessageListener(MailDB db) { handler = new MailHandler(db); }
+		private final IngestPipeline pipeline;
+		private final MessageSpool spool;
+		public MessageListener(IngestPipeline pipeline, MessageSpool spool) {
+			this.pipeline = pipeline;
+			this.spool = spool;
+		}
 
 		@Override
 		public boolean accept(String from, String recipient) {
 			logger.info("ACCEPT: {} -> {}", from, recipient);
-			return handler.accept(from, recipient);
+			if (pipeline.isFull())
+				throw busy();
+			return pipeline.getHandler().accept(from, recipient);
 		}
 
 		@Override
 		public void deliver(String from, String recipient, InputStream data)
 			throws TooMuchDataException, IOException {
-			String content = Utils.streamToString(data);
-			logger.info("DELIVER: {} -> {}", from, recipient);
-			handler.handleMessage(from, recipient, content);
+			ParsedMessage message = spool.read(data);
+			logger.info("DELIVER: {} -> {} ({} bytes)", from, recipient, message.getSize());
+			if (!pipeline.submit(from, recipient, message)) {
+				message.close();
+				logger.warn("Pipeline full, deferring message: {} -> {}", from, recipient);
+				throw busy();
+			}
+		}
+
+		/** Returns a temporary failure response, telling the client to retry later. */
+		private RejectException busy() {
+			return new RejectException(SMTP_TEMPORARY_FAILURE, "Server busy, try again later");
 		}
 	}
 
 	/** Creates the SMTP server. */
 	public MailServer(MailDB db) {
-		super(new SimpleMessageListenerAdapter(new MessageListener(db)));
+		this(new IngestPipeline(new MailHandler(db)));
+	}
+
+	/** Creates the SMTP server. */
+	public MailServer(IngestPipeline pipeline) {
+		this(pipeline, new MessageSpool());
+	}
+
+	/** Creates the SMTP server. */
+	private MailServer(IngestPipeline pipeline, MessageSpool spool) {
+		super(new SimpleMessageListenerAdapter(new MessageListener(pipeline, spool)));
+		this.pipeline = pipeline;
+		this.spool = spool;
+		setMaxMessageSize(spool.getMaxSize());
 		setSystemProperties();
 	}
 
+	/** Sets the maximum message size (in bytes), or 0 if unlimited. */
+	@Override
+	public void setMaxMessageSize(int maxMessageSize) {
+		super.setMaxMessageSize(maxMessageSize);
+		spool.setMaxSize(maxMessageSize);
+	}
+
+	/** Sets the message size (in bytes) above which incoming data is spooled to disk. */
+	public void setSpoolThreshold(int threshold) { spool.setThreshold(threshold); }
+
+	/** Returns the ingest pipeline. */
+	public IngestPipeline getPipeline() { return pipeline; }
+
+	/** Stops the server, and waits for all received messages to be processed. */
+	@Override
+	public synchronized void stop() {
+		super.stop();
+		pipeline.shutdown();
+	}
+
 	/** Sets system properties. */
 	private void setSystemProperties() {
 		// allow multipart messages with no body parts
@@ -1,12 +1,13 @@
 package itdelatrisu.mailserver;
 
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
-import java.nio.charset.StandardCharsets;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.sql.SQLException;
 import java.util.Date;
 
@@ -20,12 +21,29 @@ import org.slf4j.LoggerFactory;
 
 /**
  * Storage handler for incoming mail.
+ * <p>
+ * Messages are appended to a segmented {@link MailStore}, and the inbox
+ * entry records the message locator. Identical bodies (after stripping
+ * attachments) are stored only once. If the store cannot be opened, messages
+ * are written to individual files instead (the legacy layout).
  */
 public class MailStorage {
 	private static final Logger logger = LoggerFactory.getLogger(MailStorage.class);
 
 	/** Default root mail directory. */
-	private static final File DEFAULT_MAIL_DIR = new File("mail");
+	public static final File DEFAULT_MAIL_DIR = new File("mail");
+
+	/** Mail store directory (within the root mail directory). */
+	public static final String STORE_DIR = "segments";
+
+	/** Minimum body size (in bytes) to store as a shared body. */
+	private static final int MIN_SHARED_BODY_SIZE = 1024;
+
+	/** Maximum initial size (in bytes) of the buffer a stripped message is written to. */
+	private static final int MAX_INITIAL_BUFFER_SIZE = 64 * 1024;
+
+	/** System property enabling compression of stored messages. */
+	public static final String COMPRESS_PROPERTY = "mailserver.compressMail";
 
 	/** The database instance. */
 	private final MailDB db;
@@ -33,6 +51,9 @@ public class MailStorage {
 	/** The root mail directory. */
 	private final File mailDir;
 
+	/** The segmented message store (or null if unavailable). */
+	private final MailStore store;
+
 	/** Initializes the storage module. */
 	public MailStorage(MailDB db) {
 		this(db, DEFAULT_MAIL_DIR);
@@ -44,63 +65,157 @@ public class MailStorage {
 		this.mailDir = rootDir;
 		if (!mailDir.isDirectory() && !mailDir.mkdirs())
 			logger.error("Failed to create root mail directory '{}'.", mailDir.getAbsolutePath());
-	}
-
-	/** Stores the message. */
-	public void store(String from, MailDB.MailUser user, String data) {
-		// {root_mail_dir}/{email}/{timestamp}.eml
-		File dir = new File(mailDir, Utils.cleanFileName(user.getEmail(), '_'));
-		if (!dir.isDirectory() && !dir.mkdirs()) {
-			logger.error("Failed to create mail directory '{}'.", dir.getAbsolutePath());
-			dir = mailDir;
-		}
-		String filename = String.format("%d.eml", System.currentTimeMillis());
-		File file = new File(dir, filename);
-
-		// write contents to file
-		try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
-			writer.write(stripAttachments(data));
+		MailStore store = null;
+		try {
+			store = new MailStore(new File(mailDir, STORE_DIR));
+			store.setCompression(Boolean.getBoolean(COMPRESS_PROPERTY));
 		} catch (IOException e) {
-			logger.error("Failed to write email to disk.", e);
+			logger.error("Failed to open mail store, writing messages to individual files.", e);
 		}
+		this.store = store;
+	}
 
-		// write mail entry into database
+	/** Stores the message. */
+	public void store(String from, MailDB.MailUser user, ParsedMessage message) {
+		// read headers (before stripping attachments)
 		String subject = null;
 		Date sentDate = null;
 		try {
-			MimeMessage message = Utils.toMimeMessage(data);
 			subject = message.getSubject();
 			sentDate = message.getSentDate();
 		} catch (MessagingException e) {
 			logger.error("Failed to parse message.", e);
 		}
+
+		// write contents to disk
+		String location;
+		try {
+			location = (store != null) ? writeToStore(user, message) : writeToFile(user, message);
+		} catch (IOException | MessagingException e) {
+			logger.error("Failed to write email to disk.", e);
+			return;
+		}
+
+		// write mail entry into database
 		try {
-			db.addMailEntry(user.getEmail(), from, sentDate, subject, file.getName());
+			db.addMailEntry(user, from, sentDate, subject, location);
 		} catch (SQLException e) {
 			logger.error("Failed to log message to database.", e);
 		}
 	}
 
-	/** Strips attachments in the given message. */
-	private String stripAttachments(String data) {
+	/** Output stream buffer whose contents are read in place (instead of copied). */
+	private static class MessageBuffer extends ByteArrayOutputStream {
+		/** Creates a buffer with the given initial capacity. */
+		private MessageBuffer(int size) { super(size); }
+
+		/** Returns the internal buffer (valid up to {@link #size()}). */
+		private byte[] getBuffer() { return buf; }
+	}
+
+	/** Appends the (stripped) message to the mail store, and returns its locator. */
+	private String writeToStore(MailDB.MailUser user, ParsedMessage message) throws IOException, MessagingException {
+		// stripped output is usually much smaller than large (spooled) messages, so grow as needed
+		MessageBuffer out = new MessageBuffer((int) Math.min(message.getSize(), MAX_INITIAL_BUFFER_SIZE));
+		writeStripped(message, out);
+		byte[] data = out.getBuffer();
+		int length = out.size();
+
+		// store the body separately, so that copies sent to other recipients share it
+		int split = getBodyOffset(data, length);
+		if (split < 0 || length - split < MIN_SHARED_BODY_SIZE)
+			return store.append(user.getId(), data, 0, length);
+		return store.appendShared(user.getId(), data, split, length);
+	}
+
+	/** Returns the offset of the body in a raw message (after the first blank line), or -1 if none. */
+	private static int getBodyOffset(byte[] data, int length) {
+		for (int i = 0; i + 1 < length; i++) {
+			if (data[i] != '\n')
+				continue;
+			if (data[i + 1] == '\n')
+				return i + 2;
+			if (data[i + 1] == '\r' && i + 2 < length && data[i + 2] == '\n')
+				return i + 3;
+		}
+		return -1;
+	}
+
+	/** Writes the (stripped) message to its own file, and returns the file name. */
+	private String writeToFile(MailDB.MailUser user, ParsedMessage message) throws IOException, MessagingException {
+		// {root_mail_dir}/{email}/{timestamp}.eml
+		File file = new File(getUserDir(user.getEmail()), String.format("%d.eml", System.currentTimeMillis()));
+		if (!file.getParentFile().isDirectory() && !file.getParentFile().mkdirs()) {
+			logger.error("Failed to create mail directory '{}'.", file.getParentFile().getAbsolutePath());
+			file = new File(mailDir, file.getName());
+		}
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+			writeStripped(message, out);
+		}
+		return file.getName();
+	}
+
+	/** Writes the message with attachments stripped. */
+	private void writeStripped(ParsedMessage message, OutputStream out) throws IOException, MessagingException {
+		MimeMessage stripped = stripAttachments(message);
+		if (stripped != null)
+			stripped.writeTo(out);
+		else
+			message.writeTo(out);
+	}
+
+	/** Returns the legacy mail directory for a user. */
+	public static File getUserDir(File mailDir, String email) { return new File(mailDir, Utils.cleanFileName(email, '_')); }
+
+	/** Returns the legacy mail directory for a user. */
+	private File getUserDir(String email) { return getUserDir(mailDir, email); }
+
+	/**
+	 * Opens a stored message.
+	 * @param email the recipient's email address
+	 * @param location the location recorded in the inbox entry (a store locator or legacy file name)
+	 */
+	public InputStream open(String email, String location) throws IOException {
+		if (MailStore.isLocator(location)) {
+			if (store == null)
+				throw new IOException("Mail store is unavailable.");
+			return store.open(location);
+		}
+		return new FileInputStream(new File(getUserDir(email), location));
+	}
+
+	/** Returns the segmented message store (or null if unavailable). */
+	public MailStore getStore() { return store; }
+
+	/** Closes the storage module. */
+	public void close() {
+		if (store != null)
+			store.close();
+	}
+
+	/**
+	 * Strips attachments in the given message (modifying its MIME tree),
+	 * and returns the modified message, or null if nothing was stripped.
+	 */
+	static MimeMessage stripAttachments(ParsedMessage parsed) {
 		try {
-			// parse MIME message
-			MimeMessage message = Utils.toMimeMessage(data);
+			// get MIME message
+			MimeMessage message = parsed.getMimeMessage();
 			Object content = message.getContent();
 			if (!(content instanceof Multipart))
-				return data;  // not a multipart message
+				return null;  // not a multipart message
 
 			// strip attachments
 			Multipart multipart = (Multipart) content;
 			if (stripAttachments(multipart)) {
 				message.setContent(multipart);
 				message.saveChanges();
-				return Utils.messageToString(message);
+				return message;
 			} else
-				return data;  // content unmodified
+				return null;  // content unmodified
 		} catch (MessagingException | IOException e) {
 			logger.error("Error while stripping attachments.", e);
-			return data;
+			return null;
 		}
 	}
 
@@ -108,7 +223,7 @@ public class MailStorage {
 	 * Recursively strips attachments from a multipart message,
 	 * and returns whether the message was modified.
 	 */
-	private boolean stripAttachments(Multipart multipart) throws MessagingException, IOException {
+	private static boolean stripAttachments(Multipart multipart) throws MessagingException, IOException {
 		boolean modified = false;
 		for (int i = multipart.getCount() - 1; i >= 0; i--) {
 			Part part = multipart.getBodyPart(i);
@@ -125,7 +240,7 @@ public class MailStorage {
 	}
 
 	/** Returns whether to discard content with this MIME type. */
-	private boolean discardMimeType(String contentType) {
+	private static boolean discardMimeType(String contentType) {
 		return !contentType.startsWith("text/");
 	}
 }
@@ -0,0 +1,862 @@
+package itdelatrisu.mailserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+
+/**
+ * Append-only segmented message store.
+ * <p>
+ * Messages are appended to rolling segment files, and located by a stable
+ * locator string ({@code seg:<segment>:<offset>:<length>}). A fixed-size
+ * index record (message ID, recipient ID, location) is appended for each
+ * message, and the index is loaded into memory (as primitive arrays, with
+ * each recipient's messages chained together) when the store is opened, so
+ * that a recipient's messages can be listed without scanning the segments
+ * or the index. All writes go through a single writer thread, which syncs
+ * once per batch of messages (group commit).
+ * <p>
+ * If compression is enabled, messages are Deflate-compressed (using the
+ * current preset dictionary, if any) before they are written; reads return
+ * the original bytes either way.
+ * <p>
+ * Message bodies can also be stored once and shared ({@link #append(int, byte[], byte[])}):
+ * each distinct body is written as a blob keyed by its SHA-256 hash, and the
+ * message record holds only its own headers and the hash. Blobs are
+ * recorded in a separate blob log. The store is append-only, so blobs are
+ * never reclaimed (nor are messages ever removed).
+ */
+public class MailStore implements Closeable {
+	private static final Logger logger = LoggerFactory.getLogger(MailStore.class);
+
+	/** Segment size (in bytes) above which a new segment is started. */
+	private static final long MAX_SEGMENT_SIZE = 256L * 1024 * 1024;
+
+	/** Segment record flag: the data is compressed (see {@link MailCompression}). */
+	private static final byte FLAG_COMPRESSED = 1;
+
+	/** Segment record flag: the data is a body hash followed by headers (see {@link #append(int, byte[], byte[])}). */
+	private static final byte FLAG_SHARED_BODY = 2;
+
+	/** Recipient ID recorded for shared body blobs. */
+	private static final int BLOB_RECIPIENT = -1;
+
+	/** Body hash size (in bytes). */
+	private static final int HASH_SIZE = 32;
+
+	/** Segment record magic number. */
+	private static final int RECORD_MAGIC = 0x4D534731;  // "MSG1"
+
+	/** Segment record header size: magic, flags, message ID, recipient ID, length, checksum. */
+	private static final int RECORD_HEADER_SIZE = 4 + 1 + 8 + 4 + 4 + 4;
+
+	/** Index record size: message ID, recipient ID, segment, offset, length, checksum. */
+	private static final int INDEX_RECORD_SIZE = 8 + 4 + 4 + 8 + 4 + 4;
+
+	/** Blob log record size: type, hash, segment, offset, length, checksum. */
+	private static final int BLOB_RECORD_SIZE = 1 + HASH_SIZE + 4 + 8 + 4 + 4;
+
+	/** Blob log record type: a blob was written. */
+	private static final byte BLOB_ADD = 1;
+
+	/** Blob log file name. */
+	private static final String BLOB_FILE = "blobs.dat";
+
+	/** Lock file name (locked while the store is open for writing). */
+	private static final String LOCK_FILE = "lock";
+
+	/** Index file name. */
+	private static final String INDEX_FILE = "index.dat";
+
+	/** Dictionary file name format. */
+	private static final String DICTIONARY_FILE_FORMAT = "dict-%08x.bin";
+
+	/** Dictionary file name pattern. */
+	private static final Pattern DICTIONARY_FILE_PATTERN = Pattern.compile("^dict-([0-9a-f]{8})\\.bin$");
+
+	/** File naming the current dictionary. */
+	private static final String CURRENT_DICTIONARY_FILE = "dictionary";
+
+	/** Segment file name format. */
+	private static final String SEGMENT_FILE_FORMAT = "seg-%06d.dat";
+
+	/** Segment file name pattern. */
+	private static final Pattern SEGMENT_FILE_PATTERN = Pattern.compile("^seg-(\\d+)\\.dat$");
+
+	/** Locator pattern. */
+	private static final Pattern LOCATOR_PATTERN = Pattern.compile("^seg:(\\d+):(\\d+):(\\d+)$");
+
+	/** A stored message. */
+	public static class Entry {
+		public final long messageId;
+		public final int recipientId;
+		public final String locator;
+
+		/** Constructor. */
+		private Entry(long messageId, int recipientId, String locator) {
+			this.messageId = messageId;
+			this.recipientId = recipientId;
+			this.locator = locator;
+		}
+	}
+
+	/** In-memory index of stored messages, in order, as parallel arrays. */
+	private static class MessageIndex {
+		/** Initial capacity (in messages). */
+		private static final int INITIAL_CAPACITY = 1024;
+
+		/** Message IDs and segment offsets. */
+		private long[] messageIds = new long[INITIAL_CAPACITY], offsets = new long[INITIAL_CAPACITY];
+
+		/** Recipient IDs, segments, and lengths. */
+		private int[] recipientIds = new int[INITIAL_CAPACITY], segments = new int[INITIAL_CAPACITY], lengths = new int[INITIAL_CAPACITY];
+
+		/** Position of the same recipient's previous message (or -1 if none). */
+		private int[] previous = new int[INITIAL_CAPACITY];
+
+		/** Number of messages. */
+		private int size = 0;
+
+		/** Position of each recipient's last message. */
+		private final Map<Integer, Integer> last = new HashMap<Integer, Integer>();
+
+		/** Adds a message. */
+		private synchronized void add(long messageId, int recipientId, int seg, long offset, int length) {
+			if (size == messageIds.length) {
+				int capacity = size * 2;
+				messageIds = Arrays.copyOf(messageIds, capacity);
+				offsets = Arrays.copyOf(offsets, capacity);
+				recipientIds = Arrays.copyOf(recipientIds, capacity);
+				segments = Arrays.copyOf(segments, capacity);
+				lengths = Arrays.copyOf(lengths, capacity);
+				previous = Arrays.copyOf(previous, capacity);
+			}
+			Integer prev = last.put(recipientId, size);
+			messageIds[size] = messageId;
+			offsets[size] = offset;
+			recipientIds[size] = recipientId;
+			segments[size] = seg;
+			lengths[size] = length;
+			previous[size] = (prev == null) ? -1 : prev;
+			size++;
+		}
+
+		/** Adds the messages in a buffer of index records (as written by this store). */
+		private void add(ByteBuffer records) {
+			while (records.remaining() >= INDEX_RECORD_SIZE) {
+				long messageId = records.getLong();
+				int recipientId = records.getInt();
+				int seg = records.getInt();
+				long offset = records.getLong();
+				int length = records.getInt();
+				records.getInt();  // checksum
+				add(messageId, recipientId, seg, offset, length);
+			}
+		}
+
+		/** Returns the message at a position. */
+		private Entry get(int i) {
+			return new Entry(messageIds[i], recipientIds[i], locator(segments[i], offsets[i], lengths[i]));
+		}
+
+		/** Returns a recipient's messages, in order. */
+		private synchronized List<Entry> list(int recipientId) {
+			List<Entry> list = new ArrayList<Entry>();
+			Integer i = last.get(recipientId);
+			for (int j = (i == null) ? -1 : i; j != -1; j = previous[j])
+				list.add(get(j));
+			Collections.reverse(list);
+			return list;
+		}
+
+		/** Returns all messages added so far, in order (creating each entry when it is read). */
+		private List<Entry> list() {
+			final long[] messageIds, offsets;
+			final int[] recipientIds, segments, lengths;
+			final int n;
+			synchronized (this) {
+				messageIds = this.messageIds;
+				offsets = this.offsets;
+				recipientIds = this.recipientIds;
+				segments = this.segments;
+				lengths = this.lengths;
+				n = size;
+			}
+
+			// (the arrays are only appended to, or replaced when growing)
+			return new AbstractList<Entry>() {
+				@Override
+				public Entry get(int i) {
+					if (i < 0 || i >= n)
+						throw new IndexOutOfBoundsException(Integer.toString(i));
+					return new Entry(messageIds[i], recipientIds[i], locator(segments[i], offsets[i], lengths[i]));
+				}
+
+				@Override
+				public int size() { return n; }
+			};
+		}
+	}
+
+	/** A message or blob waiting to be written. */
+	private static class PendingWrite {
+		private final int recipientId;
+		private final byte flags;
+		private final byte[] data;
+		private final int offset, length;  // of the record data within the array
+		private final HashCode hash;  // of the blob, or of the shared body referenced
+		private final CompletableFuture<String> locator = new CompletableFuture<String>();
+
+		/** Constructor. */
+		private PendingWrite(int recipientId, byte flags, byte[] data, int offset, int length, HashCode hash) {
+			this.recipientId = recipientId;
+			this.flags = flags;
+			this.data = data;
+			this.offset = offset;
+			this.length = length;
+			this.hash = hash;
+		}
+
+		/** Returns whether this is a blob. */
+		private boolean isBlob() { return recipientId == BLOB_RECIPIENT; }
+	}
+
+	/** Marker queued by {@link #close()}. */
+	private static final PendingWrite CLOSE = new PendingWrite(0, (byte) 0, null, 0, 0, null);
+
+	/** The store directory. */
+	private final File dir;
+
+	/** The index file channel. */
+	private final FileChannel index;
+
+	/** The blob log file channel. */
+	private final FileChannel blobLog;
+
+	/** Stored messages. */
+	private final MessageIndex messages = new MessageIndex();
+
+	/** Locators of written blobs, keyed by hash (added by the writer thread only). */
+	private final Map<HashCode, String> blobs = new ConcurrentHashMap<HashCode, String>();
+
+	/** Hashes of blobs written or queued. */
+	private final Set<HashCode> knownBlobs = ConcurrentHashMap.newKeySet();
+
+	/** The current segment number. */
+	private int segment;
+
+	/** The current segment file channel. */
+	private FileChannel segmentChannel;
+
+	/** Known compression dictionaries, keyed by ID. */
+	private final Map<Integer, byte[]> dictionaries = new ConcurrentHashMap<Integer, byte[]>();
+
+	/** The dictionary used for new messages (or null if none). */
+	private volatile byte[] dictionary;
+
+	/** Whether new messages are compressed. */
+	private volatile boolean compress = false;
+
+	/** The next message ID. */
+	private long nextId = 1;
+
+	/** Messages waiting to be written. */
+	private final BlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<PendingWrite>();
+
+	/** The writer thread. */
+	private final Thread writer;
+
+	/** Whether the store is closing. */
+	private volatile boolean closed = false;
+
+	/** Whether the store is read-only. */
+	private final boolean readOnly;
+
+	/** The exclusive lock on the store (or null if read-only). */
+	private final FileLock lock;
+
+	/** Opens the store in the given directory, creating it if needed. */
+	public MailStore(File dir) throws IOException {
+		this(dir, false);
+	}
+
+	/**
+	 * Opens the store in the given directory.
+	 * @param dir the store directory (created if needed, unless read-only)
+	 * @param readOnly whether to open the store for reading only (e.g. while
+	 *        the server is writing to it); reads only see messages written
+	 *        before the store was opened
+	 * @throws IOException if opening for writing, and the store is already
+	 *         open for writing (by this or another process)
+	 */
+	public MailStore(File dir, boolean readOnly) throws IOException {
+		this.dir = dir;
+		this.readOnly = readOnly;
+		if (readOnly) {
+			if (!new File(dir, INDEX_FILE).isFile() || !new File(dir, BLOB_FILE).isFile())
+				throw new IOException(String.format("No mail store in directory '%s'.", dir.getAbsolutePath()));
+		} else if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException(String.format("Failed to create mail store directory '%s'.", dir.getAbsolutePath()));
+		this.lock = readOnly ? null : lock(dir);
+		try {
+			StandardOpenOption[] options = readOnly ?
+				new StandardOpenOption[] { StandardOpenOption.READ } :
+				new StandardOpenOption[] { StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE };
+
+			// load the index, discarding any torn record at the end
+			this.index = FileChannel.open(new File(dir, INDEX_FILE).toPath(), options);
+			long validSize = loadIndex();
+			if (!readOnly && index.size() != validSize) {
+				logger.warn("Discarding {} bytes at the end of the mail store index.", index.size() - validSize);
+				index.truncate(validSize);
+			}
+			if (!readOnly)
+				index.position(validSize);
+
+			// load the blob log
+			this.blobLog = FileChannel.open(new File(dir, BLOB_FILE).toPath(), options);
+			validSize = readBlobLog();
+			if (!readOnly) {
+				if (blobLog.size() != validSize) {
+					logger.warn("Discarding {} bytes at the end of the mail store blob log.", blobLog.size() - validSize);
+					blobLog.truncate(validSize);
+				}
+				blobLog.position(validSize);
+			}
+			knownBlobs.addAll(blobs.keySet());
+
+			// load dictionaries, and open the last segment for appending
+			this.segment = 1;
+			File[] files = dir.listFiles();
+			if (files != null) {
+				for (File file : files) {
+					Matcher m = SEGMENT_FILE_PATTERN.matcher(file.getName());
+					if (m.matches())
+						segment = Math.max(segment, Integer.parseInt(m.group(1)));
+					else if (DICTIONARY_FILE_PATTERN.matcher(file.getName()).matches()) {
+						byte[] dict = Files.readAllBytes(file.toPath());
+						dictionaries.put(MailCompression.getDictionaryId(dict), dict);
+					}
+				}
+			}
+			File current = new File(dir, CURRENT_DICTIONARY_FILE);
+			if (current.isFile()) {
+				String name = new String(Files.readAllBytes(current.toPath()), StandardCharsets.UTF_8).trim();
+				Matcher m = DICTIONARY_FILE_PATTERN.matcher(name);
+				if (m.matches())
+					this.dictionary = dictionaries.get((int) Long.parseLong(m.group(1), 16));
+				if (dictionary == null)
+					logger.warn("Current mail store dictionary '{}' not found.", name);
+			}
+			if (readOnly) {
+				this.writer = null;
+				return;
+			}
+			openSegment();
+
+			this.writer = new Thread(new Runnable() {
+				@Override
+				public void run() { writeLoop(); }
+			}, "mail-store");
+			writer.start();
+		} catch (IOException | RuntimeException e) {
+			if (lock != null)
+				lock.channel().close();
+			throw e;
+		}
+	}
+
+	/** Locks the store in the given directory for writing, failing if it is already locked. */
+	private static FileLock lock(File dir) throws IOException {
+		FileChannel channel = FileChannel.open(new File(dir, LOCK_FILE).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		FileLock lock = null;
+		try {
+			lock = channel.tryLock();
+		} catch (OverlappingFileLockException e) {}
+		if (lock == null) {
+			channel.close();
+			throw new IOException(String.format("Mail store '%s' is in use (is the server running?).", dir.getAbsolutePath()));
+		}
+		return lock;
+	}
+
+	/** Returns whether the string is a locator in this store (as opposed to a legacy file name). */
+	public static boolean isLocator(String s) { return s != null && LOCATOR_PATTERN.matcher(s).matches(); }
+
+	/** Sets whether new messages are compressed. */
+	public void setCompression(boolean compress) { this.compress = compress; }
+
+	/** Returns whether new messages are compressed. */
+	public boolean isCompressionEnabled() { return compress; }
+
+	/** Returns the dictionary used for new messages (or null if none). */
+	public byte[] getDictionary() { return dictionary; }
+
+	/**
+	 * Saves a dictionary, and uses it to compress new messages.
+	 * (Dictionaries are kept, since existing messages may require them.)
+	 */
+	public synchronized void setDictionary(byte[] dict) throws IOException {
+		int id = MailCompression.getDictionaryId(dict);
+		String name = String.format(DICTIONARY_FILE_FORMAT, id);
+		writeAtomically(new File(dir, name), dict);
+		writeAtomically(new File(dir, CURRENT_DICTIONARY_FILE), name.getBytes(StandardCharsets.UTF_8));
+		dictionaries.put(id, dict);
+		this.dictionary = dict;
+	}
+
+	/** Writes a file via a temporary file, so that it is never seen partially written. */
+	private void writeAtomically(File file, byte[] data) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buf = ByteBuffer.wrap(data);
+			while (buf.hasRemaining())
+				out.write(buf);
+			out.force(true);
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Appends a message, and waits until it is on disk.
+	 * @param recipientId the recipient's user ID
+	 * @param data the message data
+	 * @return the message locator
+	 */
+	public String append(int recipientId, byte[] data) throws IOException {
+		return append(recipientId, data, 0, data.length);
+	}
+
+	/**
+	 * Appends a message, and waits until it is on disk.
+	 * @param recipientId the recipient's user ID
+	 * @param data the array containing the message data
+	 * @param offset the offset of the message data
+	 * @param length the length of the message data
+	 * @return the message locator
+	 */
+	public String append(int recipientId, byte[] data, int offset, int length) throws IOException {
+		PendingWrite write = prepare(recipientId, (byte) 0, data, offset, length, null);
+		synchronized (queue) {
+			if (closed || readOnly)
+				throw new IOException(readOnly ? "Mail store is read-only." : "Mail store is closed.");
+			queue.add(write);
+		}
+		return await(write);
+	}
+
+	/**
+	 * Appends a message whose body is stored only once across all messages,
+	 * and waits until it is on disk.
+	 * @param recipientId the recipient's user ID
+	 * @param head the message headers (including the blank line ending them)
+	 * @param body the message body
+	 * @return the message locator (reading it returns the headers followed by the body)
+	 */
+	public String append(int recipientId, byte[] head, byte[] body) throws IOException {
+		return appendShared(recipientId, head, 0, head.length, body, 0, body.length);
+	}
+
+	/**
+	 * Appends a message whose body is stored only once across all messages,
+	 * and waits until it is on disk.
+	 * @param recipientId the recipient's user ID
+	 * @param message the array containing the message (starting at index 0)
+	 * @param bodyOffset the offset of the body (after the blank line ending the headers)
+	 * @param length the length of the message
+	 * @return the message locator (reading it returns the whole message)
+	 */
+	public String appendShared(int recipientId, byte[] message, int bodyOffset, int length) throws IOException {
+		return appendShared(recipientId, message, 0, bodyOffset, message, bodyOffset, length - bodyOffset);
+	}
+
+	/** Appends a message whose body is stored only once, and waits until it is on disk. */
+	private String appendShared(
+		int recipientId, byte[] head, int headOffset, int headLength,
+		byte[] body, int bodyOffset, int bodyLength
+	) throws IOException {
+		HashCode hash = Hashing.sha256().hashBytes(body, bodyOffset, bodyLength);
+		PendingWrite blob = knownBlobs.contains(hash) ? null : prepare(BLOB_RECIPIENT, (byte) 0, body, bodyOffset, bodyLength, hash);
+		byte[] data = new byte[HASH_SIZE + headLength];
+		hash.writeBytesTo(data, 0, HASH_SIZE);
+		System.arraycopy(head, headOffset, data, HASH_SIZE, headLength);
+		PendingWrite write = prepare(recipientId, FLAG_SHARED_BODY, data, 0, data.length, hash);
+
+		// queue the blob (if new) before the message, so that it is written first
+		synchronized (queue) {
+			if (closed || readOnly)
+				throw new IOException(readOnly ? "Mail store is read-only." : "Mail store is closed.");
+			if (knownBlobs.add(hash))
+				queue.add((blob != null) ? blob : prepare(BLOB_RECIPIENT, (byte) 0, body, bodyOffset, bodyLength, hash));
+			queue.add(write);
+		}
+		return await(write);
+	}
+
+	/** Returns the number of shared bodies stored. */
+	public int getBlobCount() { return blobs.size(); }
+
+	/** Creates a pending write, compressing the data (on the calling thread) if enabled and worthwhile. */
+	private PendingWrite prepare(int recipientId, byte flags, byte[] data, int offset, int length, HashCode hash) {
+		if (compress) {
+			byte[] compressed = MailCompression.compress(data, offset, length, dictionary);
+			if (compressed.length < length)
+				return new PendingWrite(recipientId, (byte) (flags | FLAG_COMPRESSED), compressed, 0, compressed.length, hash);
+		}
+		return new PendingWrite(recipientId, flags, data, offset, length, hash);
+	}
+
+	/** Waits for a pending write, and returns its locator. */
+	private String await(PendingWrite write) throws IOException {
+		try {
+			return write.locator.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException("Failed to write to mail store.", e.getCause());
+		}
+	}
+
+	/** Reads the message at the given locator (decompressing it if needed). */
+	public byte[] read(String locator) throws IOException {
+		Matcher m = LOCATOR_PATTERN.matcher(locator);
+		if (!m.matches())
+			throw new IOException(String.format("Invalid locator '%s'.", locator));
+		int seg = Integer.parseInt(m.group(1));
+		long offset = Long.parseLong(m.group(2));
+		int length = Integer.parseInt(m.group(3));
+
+		try (FileChannel channel = FileChannel.open(segmentFile(seg).toPath(), StandardOpenOption.READ)) {
+			ByteBuffer buf = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+			while (buf.hasRemaining()) {
+				if (channel.read(buf, offset + buf.position()) < 0)
+					throw new IOException(String.format("Unexpected end of segment for locator '%s'.", locator));
+			}
+			buf.flip();
+			if (buf.getInt() != RECORD_MAGIC)
+				throw new IOException(String.format("No message at locator '%s'.", locator));
+			byte flags = buf.get();
+			buf.getLong();  // message ID
+			buf.getInt();  // recipient ID
+			if (buf.getInt() != length)
+				throw new IOException(String.format("Length mismatch at locator '%s'.", locator));
+			int checksum = buf.getInt();
+			byte[] data = new byte[length];
+			buf.get(data);
+			CRC32 crc = new CRC32();
+			crc.update(data);
+			if ((int) crc.getValue() != checksum)
+				throw new IOException(String.format("Checksum mismatch at locator '%s'.", locator));
+			if ((flags & FLAG_COMPRESSED) != 0)
+				data = MailCompression.decompress(data, dictionaries);
+			if ((flags & FLAG_SHARED_BODY) == 0)
+				return data;
+
+			// read the shared body
+			if (data.length < HASH_SIZE)
+				throw new IOException(String.format("Truncated message at locator '%s'.", locator));
+			HashCode hash = HashCode.fromBytes(Arrays.copyOf(data, HASH_SIZE));
+			String blobLocator = blobs.get(hash);
+			if (blobLocator == null)
+				throw new IOException(String.format("Missing shared body %s for locator '%s'.", hash, locator));
+			byte[] body = read(blobLocator);
+			byte[] message = new byte[data.length - HASH_SIZE + body.length];
+			System.arraycopy(data, HASH_SIZE, message, 0, data.length - HASH_SIZE);
+			System.arraycopy(body, 0, message, data.length - HASH_SIZE, body.length);
+			return message;
+		}
+	}
+
+	/** Opens the message at the given locator. */
+	public InputStream open(String locator) throws IOException {
+		return new ByteArrayInputStream(read(locator));
+	}
+
+	/**
+	 * Returns all stored messages for the given recipient, in order.
+	 * (If read-only, only messages written before the store was opened.)
+	 */
+	public List<Entry> list(int recipientId) { return messages.list(recipientId); }
+
+	/**
+	 * Returns all messages stored so far, in order (a read-only view, whose
+	 * entries are created as they are read).
+	 * (If read-only, only messages written before the store was opened.)
+	 */
+	public List<Entry> list() { return messages.list(); }
+
+	/** Writes all queued messages, and closes the store. */
+	@Override
+	public void close() {
+		synchronized (queue) {
+			if (closed)
+				return;
+			closed = true;
+			if (readOnly) {
+				try {
+					blobLog.close();
+					index.close();
+				} catch (IOException e) {}
+				return;
+			}
+			queue.add(CLOSE);
+		}
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/** Returns the file for a segment. */
+	private File segmentFile(int seg) { return new File(dir, String.format(SEGMENT_FILE_FORMAT, seg)); }
+
+	/** Opens the current segment for appending. */
+	private void openSegment() throws IOException {
+		if (segmentChannel != null)
+			segmentChannel.close();
+		segmentChannel = FileChannel.open(segmentFile(segment).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		segmentChannel.position(segmentChannel.size());
+	}
+
+	/**
+	 * Loads all valid index records into memory, skipping corrupt ones, and
+	 * returns the size of the index up to the end of the last valid record
+	 * (anything after it is a torn write).
+	 */
+	private long loadIndex() throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(INDEX_RECORD_SIZE * 1024);
+		long position = 0, validSize = 0;
+		while (true) {
+			buf.clear();
+			int n = index.read(buf, position);
+			if (n <= 0)
+				break;
+			buf.flip();
+			while (buf.remaining() >= INDEX_RECORD_SIZE) {
+				byte[] record = new byte[INDEX_RECORD_SIZE - 4];
+				buf.get(record);
+				int checksum = buf.getInt();
+				CRC32 crc = new CRC32();
+				crc.update(record);
+				if ((int) crc.getValue() != checksum) {
+					position += INDEX_RECORD_SIZE;
+					continue;
+				}
+				if (position > validSize)
+					logger.warn("Skipping {} corrupt records in the mail store index at offset {}.", (position - validSize) / INDEX_RECORD_SIZE, validSize);
+				ByteBuffer r = ByteBuffer.wrap(record);
+				long messageId = r.getLong();
+				int recipientId = r.getInt();
+				int seg = r.getInt();
+				long offset = r.getLong();
+				int length = r.getInt();
+				messages.add(messageId, recipientId, seg, offset, length);
+				nextId = Math.max(nextId, messageId + 1);
+				position += INDEX_RECORD_SIZE;
+				validSize = position;
+			}
+			if (n < INDEX_RECORD_SIZE)
+				break;  // partial record at the end
+		}
+		return validSize;
+	}
+
+	/**
+	 * Reads all valid blob log records, skipping corrupt ones, and returns the
+	 * size of the log up to the end of the last valid record (anything after
+	 * it is a torn write).
+	 */
+	private long readBlobLog() throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(BLOB_RECORD_SIZE * 1024);
+		long position = 0, validSize = 0;
+		while (true) {
+			buf.clear();
+			int n = blobLog.read(buf, position);
+			if (n <= 0)
+				break;
+			buf.flip();
+			while (buf.remaining() >= BLOB_RECORD_SIZE) {
+				byte[] record = new byte[BLOB_RECORD_SIZE - 4];
+				buf.get(record);
+				int checksum = buf.getInt();
+				CRC32 crc = new CRC32();
+				crc.update(record);
+				if ((int) crc.getValue() != checksum) {
+					position += BLOB_RECORD_SIZE;
+					continue;
+				}
+				if (position > validSize)
+					logger.warn("Skipping {} corrupt records in the mail store blob log at offset {}.", (position - validSize) / BLOB_RECORD_SIZE, validSize);
+				ByteBuffer r = ByteBuffer.wrap(record);
+				byte type = r.get();
+				byte[] hash = new byte[HASH_SIZE];
+				r.get(hash);
+				HashCode key = HashCode.fromBytes(hash);
+				if (type == BLOB_ADD)  // (older stores also recorded each reference to a blob)
+					blobs.put(key, locator(r.getInt(), r.getLong(), r.getInt()));
+				position += BLOB_RECORD_SIZE;
+				validSize = position;
+			}
+			if (n < BLOB_RECORD_SIZE)
+				break;  // partial record at the end
+		}
+		return validSize;
+	}
+
+	/** Encodes a blob log record. */
+	private static void putBlobRecord(ByteBuffer out, byte type, HashCode hash, int seg, long offset, int length) {
+		ByteBuffer record = ByteBuffer.allocate(BLOB_RECORD_SIZE - 4);
+		record.put(type);
+		record.put(hash.asBytes());
+		record.putInt(seg).putLong(offset).putInt(length);
+		CRC32 crc = new CRC32();
+		crc.update(record.array());
+		out.put(record.array()).putInt((int) crc.getValue());
+	}
+
+	/** Returns the locator string for a message. */
+	private static String locator(int seg, long offset, int length) {
+		return String.format("seg:%d:%d:%d", seg, offset, length);
+	}
+
+	/** Writer thread loop: writes queued messages in batches, syncing once per batch. */
+	private void writeLoop() {
+		List<PendingWrite> batch = new ArrayList<PendingWrite>();
+		boolean stop = false;
+		while (!stop) {
+			try {
+				batch.add(queue.take());
+			} catch (InterruptedException e) {
+				continue;
+			}
+			queue.drainTo(batch);
+			if (batch.remove(CLOSE))
+				stop = true;  // always the last entry
+			if (batch.isEmpty())
+				continue;
+
+			List<PendingWrite> written = new ArrayList<PendingWrite>(batch.size());
+			List<String> locators = new ArrayList<String>(batch.size());
+			List<HashCode> added = new ArrayList<HashCode>();
+			try {
+				ByteBuffer indexBuf = ByteBuffer.allocate(INDEX_RECORD_SIZE * batch.size());
+				ByteBuffer blobBuf = ByteBuffer.allocate(BLOB_RECORD_SIZE * batch.size());
+				for (PendingWrite w : batch) {
+					// the shared body must have been written (it is queued first)
+					if (!w.isBlob() && w.hash != null && !blobs.containsKey(w.hash)) {
+						w.locator.completeExceptionally(new IOException("Shared body was not written."));
+						continue;
+					}
+
+					// roll over to a new segment if needed
+					if (segmentChannel.size() > 0 && segmentChannel.size() + RECORD_HEADER_SIZE + w.length > MAX_SEGMENT_SIZE) {
+						segmentChannel.force(false);
+						segment++;
+						openSegment();
+					}
+
+					// append the message to the segment
+					long messageId = nextId++;
+					long offset = segmentChannel.position();
+					CRC32 crc = new CRC32();
+					crc.update(w.data, w.offset, w.length);
+					ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+					header.putInt(RECORD_MAGIC).put(w.flags).putLong(messageId).putInt(w.recipientId)
+						.putInt(w.length).putInt((int) crc.getValue());
+					header.flip();
+					ByteBuffer data = ByteBuffer.wrap(w.data, w.offset, w.length);
+					while (header.hasRemaining() || data.hasRemaining())
+						segmentChannel.write(new ByteBuffer[] { header, data });
+					String locator = locator(segment, offset, w.length);
+					written.add(w);
+					locators.add(locator);
+
+					// add the blob log record
+					if (w.isBlob()) {
+						putBlobRecord(blobBuf, BLOB_ADD, w.hash, segment, offset, w.length);
+						blobs.put(w.hash, locator);
+						added.add(w.hash);
+						continue;
+					}
+
+					// add the index record
+					ByteBuffer record = ByteBuffer.allocate(INDEX_RECORD_SIZE - 4);
+					record.putLong(messageId).putInt(w.recipientId).putInt(segment).putLong(offset).putInt(w.length);
+					crc.reset();
+					crc.update(record.array());
+					indexBuf.put(record.array()).putInt((int) crc.getValue());
+				}
+
+				// sync the segment before the logs, so they never point at missing data
+				segmentChannel.force(false);
+				blobBuf.flip();
+				if (blobBuf.hasRemaining()) {
+					while (blobBuf.hasRemaining())
+						blobLog.write(blobBuf);
+					blobLog.force(false);
+				}
+				indexBuf.flip();
+				while (indexBuf.hasRemaining())
+					index.write(indexBuf);
+				index.force(false);
+				indexBuf.rewind();
+				messages.add(indexBuf);
+				for (int i = 0; i < written.size(); i++)
+					written.get(i).locator.complete(locators.get(i));
+			} catch (IOException e) {
+				logger.error("Failed to write to mail store.", e);
+				for (HashCode hash : added)
+					blobs.remove(hash);
+				for (PendingWrite w : batch) {
+					if (w.isBlob())
+						knownBlobs.remove(w.hash);
+					w.locator.completeExceptionally(e);
+				}
+			}
+			batch.clear();
+		}
+		try {
+			segmentChannel.close();
+			blobLog.close();
+			index.close();
+			lock.channel().close();
+		} catch (IOException e) {}
+	}
+}
@@ -0,0 +1,247 @@
+package itdelatrisu.mailserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Maintenance tool for stored mail.
+ * <p>
+ * Usage: {@code java -cp mailserver.jar itdelatrisu.mailserver.MailStoreTool <command>}
+ * <ul>
+ * <li>{@code train [samples]}: trains a compression dictionary on stored messages,
+ *     and uses it for messages stored from now on (the server picks it up
+ *     when next started)</li>
+ * <li>{@code migrate [--delete]}: moves messages stored as individual files
+ *     into the (compressed) mail store, updating their inbox entries</li>
+ * <li>{@code benchmark [dir] [limit]}: reports the compression ratio and
+ *     read/write throughput of the mail store on a sample of stored messages
+ *     (or of the {@code .eml} files under the given directory)</li>
+ * </ul>
+ * {@code train} and {@code migrate} write to the mail store, so they fail
+ * if the server is running (benchmarks only read from it).
+ */
+public class MailStoreTool {
+	private static final Logger logger = LoggerFactory.getLogger(MailStoreTool.class);
+
+	/** Default number of messages to train a dictionary on. */
+	private static final int DEFAULT_TRAINING_SAMPLES = 2000;
+
+	/** Default number of messages to benchmark with. */
+	private static final int DEFAULT_BENCHMARK_LIMIT = 5000;
+
+	/** Number of benchmark rounds (the first is a warm-up). */
+	private static final int BENCHMARK_ROUNDS = 3;
+
+	/** This class should not be instantiated. */
+	private MailStoreTool() {}
+
+	public static void main(String[] args) throws Exception {
+		String command = (args.length > 0) ? args[0] : "";
+		File mailDir = MailStorage.DEFAULT_MAIL_DIR;
+		switch (command) {
+		case "train":
+			try (MailStore store = new MailStore(new File(mailDir, MailStorage.STORE_DIR))) {
+				int samples = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_TRAINING_SAMPLES;
+				train(store, sampleMessages(mailDir, store, samples));
+			}
+			break;
+		case "migrate":
+			migrate(mailDir, args.length > 1 && args[1].equals("--delete"));
+			break;
+		case "benchmark":
+			int limit = (args.length > 2) ? Integer.parseInt(args[2]) : DEFAULT_BENCHMARK_LIMIT;
+			if (args.length > 1)
+				benchmark(sampleMessages(new File(args[1]), null, limit));
+			else {
+				try (MailStore store = new MailStore(new File(mailDir, MailStorage.STORE_DIR), true)) {
+					benchmark(sampleMessages(mailDir, store, limit));
+				}
+			}
+			break;
+		default:
+			System.err.println("Usage: MailStoreTool train [samples] | migrate [--delete] | benchmark [dir] [limit]");
+			System.exit(1);
+		}
+	}
+
+	/** Trains a dictionary on the given messages, and sets it as the store's current dictionary. */
+	private static void train(MailStore store, List<byte[]> samples) throws IOException {
+		if (samples.isEmpty()) {
+			logger.error("No messages to train on.");
+			return;
+		}
+		byte[] dict = MailCompression.train(samples, MailCompression.MAX_DICTIONARY_SIZE);
+		if (dict.length == 0) {
+			logger.error("No recurring content found in {} messages.", samples.size());
+			return;
+		}
+		store.setDictionary(dict);
+		logger.info("Trained a {}-byte dictionary on {} messages.", dict.length, samples.size());
+	}
+
+	/**
+	 * Moves messages stored as individual files into the mail store (training
+	 * a dictionary first if there is none).
+	 */
+	private static void migrate(File mailDir, boolean delete) throws IOException, SQLException {
+		MailDB db = Launcher.createDatabase();
+		try (MailStore store = new MailStore(new File(mailDir, MailStorage.STORE_DIR))) {
+			store.setCompression(true);
+			if (store.getDictionary() == null)
+				train(store, sampleMessages(mailDir, null, DEFAULT_TRAINING_SAMPLES));
+
+			int migrated = 0, missing = 0;
+			long bytesIn = 0;
+			for (MailDB.MailUser user : db.getUsers()) {
+				File userDir = MailStorage.getUserDir(mailDir, user.getEmail());
+				for (String location : db.getMailLocations(user.getEmail())) {
+					if (MailStore.isLocator(location))
+						continue;
+					File file = new File(userDir, location);
+					if (!file.isFile()) {
+						logger.warn("Missing mail file '{}'.", file.getPath());
+						missing++;
+						continue;
+					}
+					byte[] data = Files.readAllBytes(file.toPath());
+					String locator = store.append(user.getId(), data);
+					db.updateMailLocation(user.getEmail(), location, locator);
+					if (delete && !file.delete())
+						logger.warn("Failed to delete mail file '{}'.", file.getPath());
+					migrated++;
+					bytesIn += data.length;
+					if (migrated % 10000 == 0)
+						logger.info("Migrated {} messages...", migrated);
+				}
+			}
+			logger.info("Migrated {} messages ({} bytes), {} files missing.", migrated, bytesIn, missing);
+		} finally {
+			db.close();
+		}
+	}
+
+	/** Benchmarks the mail store with and without compression. */
+	private static void benchmark(List<byte[]> messages) throws IOException {
+		if (messages.size() < 2) {
+			logger.error("Not enough messages to benchmark.");
+			return;
+		}
+
+		// train on half of the messages, and measure on the other half
+		List<byte[]> training = new ArrayList<byte[]>(), test = new ArrayList<byte[]>();
+		for (int i = 0; i < messages.size(); i++)
+			((i % 2 == 0) ? training : test).add(messages.get(i));
+		byte[] dict = MailCompression.train(training, MailCompression.MAX_DICTIONARY_SIZE);
+		long size = 0;
+		for (byte[] message : test)
+			size += message.length;
+		System.out.printf("%d messages (%d bytes), %d-byte dictionary trained on %d others%n", test.size(), size, dict.length, training.size());
+		System.out.printf("%-16s %10s %8s %12s %12s%n", "mode", "stored", "ratio", "write MB/s", "read MB/s");
+
+		benchmark("uncompressed", test, size, false, null);
+		benchmark("deflate", test, size, true, null);
+		if (dict.length > 0)
+			benchmark("deflate+dict", test, size, true, dict);
+	}
+
+	/** Benchmarks one configuration of the mail store (in a temporary directory). */
+	private static void benchmark(String name, List<byte[]> messages, long size, boolean compress, byte[] dict) throws IOException {
+		long stored = 0, writeNanos = 0, readNanos = 0;
+		for (int round = 0; round < BENCHMARK_ROUNDS; round++) {
+			File dir = Files.createTempDirectory("mailstore").toFile();
+			try {
+				List<String> locators = new ArrayList<String>(messages.size());
+				try (MailStore store = new MailStore(dir)) {
+					store.setCompression(compress);
+					if (dict != null)
+						store.setDictionary(dict);
+					long start = System.nanoTime();
+					for (byte[] message : messages)
+						locators.add(store.append(0, message));
+					long write = System.nanoTime() - start;
+
+					start = System.nanoTime();
+					for (String locator : locators)
+						store.read(locator);
+					long read = System.nanoTime() - start;
+
+					if (round > 0) {
+						writeNanos += write;
+						readNanos += read;
+					}
+				}
+				stored = 0;
+				for (String locator : locators)
+					stored += Long.parseLong(locator.substring(locator.lastIndexOf(':') + 1));
+			} finally {
+				for (File file : dir.listFiles())
+					file.delete();
+				dir.delete();
+			}
+		}
+		int rounds = BENCHMARK_ROUNDS - 1;
+		System.out.printf("%-16s %10d %8.2f %12.1f %12.1f%n", name, stored, (double) size / stored,
+			size * rounds / 1e6 / (writeNanos / 1e9), size * rounds / 1e6 / (readNanos / 1e9));
+	}
+
+	/**
+	 * Returns a random sample of up to {@code limit} stored messages: files
+	 * under the given directory (outside the mail store), and messages in the
+	 * mail store (if given).
+	 */
+	private static List<byte[]> sampleMessages(File dir, MailStore store, int limit) throws IOException {
+		List<File> files = new ArrayList<File>();
+		listFiles(dir, files);
+		List<Object> candidates = new ArrayList<Object>(files);
+		if (store != null) {
+			for (MailStore.Entry entry : store.list())
+				candidates.add(entry.locator);
+		}
+
+		// reservoir-sample the candidates
+		List<Object> sources = new ArrayList<Object>();
+		Random random = new Random();
+		int seen = 0;
+		for (Object candidate : candidates) {
+			seen++;
+			if (sources.size() < limit)
+				sources.add(candidate);
+			else {
+				int i = random.nextInt(seen);
+				if (i < limit)
+					sources.set(i, candidate);
+			}
+		}
+
+		List<byte[]> messages = new ArrayList<byte[]>(sources.size());
+		for (Object source : sources) {
+			if (source instanceof File)
+				messages.add(Files.readAllBytes(((File) source).toPath()));
+			else
+				messages.add(store.read((String) source));
+		}
+		return messages;
+	}
+
+	/** Recursively lists message files under a directory (skipping the mail store). */
+	private static void listFiles(File dir, List<File> files) {
+		File[] list = dir.listFiles();
+		if (list == null)
+			return;
+		for (File file : list) {
+			if (file.isDirectory()) {
+				if (!file.getName().equals(MailStorage.STORE_DIR))
+					listFiles(file, files);
+			} else if (file.getName().endsWith(".eml"))
+				files.add(file);
+		}
+	}
+}
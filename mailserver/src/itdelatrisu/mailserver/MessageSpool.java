@@ -0,0 +1,126 @@
+package itdelatrisu.mailserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.subethamail.smtp.TooMuchDataException;
+
+/**
+ * Reads incoming message data with bounded memory use.
+ * <p>
+ * Messages are buffered in memory up to a threshold, and spooled to a file
+ * on disk beyond that. Messages larger than the maximum size are rejected.
+ */
+public class MessageSpool {
+	private static final Logger logger = LoggerFactory.getLogger(MessageSpool.class);
+
+	/** Default spool directory. */
+	private static final File DEFAULT_SPOOL_DIR = new File("spool");
+
+	/** Default size (in bytes) above which messages are spooled to disk. */
+	private static final int DEFAULT_THRESHOLD = 1024 * 1024;
+
+	/** Default maximum message size (in bytes). */
+	private static final int DEFAULT_MAX_SIZE = 50 * 1024 * 1024;
+
+	/** Read buffer size. */
+	private static final int BUFFER_SIZE = 8192;
+
+	/** The spool directory. */
+	private final File spoolDir;
+
+	/** The size (in bytes) above which messages are spooled to disk. */
+	private volatile int threshold = DEFAULT_THRESHOLD;
+
+	/** The maximum message size (in bytes), or 0 if unlimited. */
+	private volatile int maxSize = DEFAULT_MAX_SIZE;
+
+	/** Initializes the spool. */
+	public MessageSpool() {
+		this(DEFAULT_SPOOL_DIR);
+	}
+
+	/** Initializes the spool. */
+	public MessageSpool(File spoolDir) {
+		this.spoolDir = spoolDir;
+		if (!spoolDir.isDirectory() && !spoolDir.mkdirs())
+			logger.error("Failed to create spool directory '{}'.", spoolDir.getAbsolutePath());
+
+		// remove files left over from a previous run
+		File[] files = spoolDir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.isFile() && !file.delete())
+					logger.warn("Failed to delete stale spool file '{}'.", file.getAbsolutePath());
+			}
+		}
+	}
+
+	/** Returns the size (in bytes) above which messages are spooled to disk. */
+	public int getThreshold() { return threshold; }
+
+	/** Sets the size (in bytes) above which messages are spooled to disk. */
+	public void setThreshold(int threshold) { this.threshold = threshold; }
+
+	/** Returns the maximum message size (in bytes), or 0 if unlimited. */
+	public int getMaxSize() { return maxSize; }
+
+	/** Sets the maximum message size (in bytes), or 0 if unlimited. */
+	public void setMaxSize(int maxSize) { this.maxSize = maxSize; }
+
+	/**
+	 * Reads the message data from the stream.
+	 * @param data the message data stream
+	 * @return the message, held either in memory or in a spool file
+	 *         (which is deleted when the message is closed)
+	 * @throws TooMuchDataException if the message exceeds the maximum size
+	 */
+	public ParsedMessage read(InputStream data) throws IOException {
+		int threshold = this.threshold, maxSize = this.maxSize;
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		byte[] buf = new byte[BUFFER_SIZE];
+		long size = 0;
+		int len;
+
+		// buffer in memory up to the threshold
+		while ((len = data.read(buf)) != -1) {
+			size += len;
+			checkSize(size, maxSize);
+			baos.write(buf, 0, len);
+			if (size > threshold)
+				break;
+		}
+		if (len == -1)
+			return new ParsedMessage(baos.toByteArray());
+
+		// spool the rest to disk
+		File file = File.createTempFile("msg", ".eml", spoolDir);
+		try (OutputStream out = new FileOutputStream(file)) {
+			baos.writeTo(out);
+			baos = null;
+			while ((len = data.read(buf)) != -1) {
+				size += len;
+				checkSize(size, maxSize);
+				out.write(buf, 0, len);
+			}
+		} catch (IOException e) {
+			if (!file.delete())
+				logger.warn("Failed to delete spool file '{}'.", file.getAbsolutePath());
+			throw e;
+		}
+		logger.debug("Spooled {}-byte message to '{}'.", size, file.getName());
+		return new ParsedMessage(file, true);
+	}
+
+	/** Throws an exception if the size exceeds the maximum size. */
+	private void checkSize(long size, int maxSize) throws TooMuchDataException {
+		if (maxSize > 0 && size > maxSize)
+			throw new TooMuchDataException(String.format("Message exceeds the maximum size of %d bytes.", maxSize));
+	}
+}
@@ -0,0 +1,210 @@
+package itdelatrisu.mailserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedByteArrayInputStream;
+import javax.mail.util.SharedFileInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+
+/**
+ * An incoming message, parsed once and shared between the storage and
+ * analyzer modules.
+ * <p>
+ * Every derived form (MIME tree, headers, HTML and plain-text parts, links)
+ * is computed lazily on first access and then cached. The storage module may
+ * strip non-text parts from the shared MIME tree, which does not affect any
+ * of the other derived forms.
+ * <p>
+ * The raw data is held either in memory or in a file. File-backed messages
+ * are parsed through a {@link SharedFileInputStream}, so body parts are read
+ * from disk on demand instead of being copied into memory.
+ * <p>
+ * Links extracted from an HTML part are cached by its hash, so that a
+ * campaign sent to many recipients is only parsed once.
+ */
+public class ParsedMessage implements Closeable {
+	private static final Logger logger = LoggerFactory.getLogger(ParsedMessage.class);
+
+	/** Maximum number of cached link extractors. */
+	private static final int EXTRACTOR_CACHE_SIZE = 256;
+
+	/** Link extractors for recently seen HTML parts, keyed by hash. */
+	private static final Cache<HashCode, LinkExtractor> extractorCache =
+		CacheBuilder.newBuilder().maximumSize(EXTRACTOR_CACHE_SIZE).build();
+
+	/** The raw message data (if held in memory). */
+	private final byte[] data;
+
+	/** The raw message file (if held on disk). */
+	private final File file;
+
+	/** Whether to delete the file when the message is closed. */
+	private final boolean deleteOnClose;
+
+	/** The shared stream backing the MIME message (if file-backed and parsed). */
+	private SharedFileInputStream fileStream;
+
+	/** The parsed MIME message (or null if not yet parsed). */
+	private MimeMessage message;
+
+	/** Header values. */
+	private String subject;
+	private Date sentDate;
+	private boolean headersParsed = false;
+
+	/** The HTML and plain-text parts. */
+	private String html, text;
+	private boolean htmlParsed = false, textParsed = false;
+
+	/** The links extracted from the HTML part. */
+	private LinkExtractor extractor;
+	private boolean linksExtracted = false;
+
+	/** Creates a new message from the raw data. */
+	public ParsedMessage(byte[] data) {
+		this.data = data;
+		this.file = null;
+		this.deleteOnClose = false;
+	}
+
+	/**
+	 * Creates a new message from a raw message file.
+	 * @param file the message file
+	 * @param deleteOnClose whether to delete the file when the message is closed
+	 */
+	public ParsedMessage(File file, boolean deleteOnClose) {
+		this.data = null;
+		this.file = file;
+		this.deleteOnClose = deleteOnClose;
+	}
+
+	/** Returns the raw message size (in bytes). */
+	public long getSize() { return (data != null) ? data.length : file.length(); }
+
+	/** Returns a new stream over the raw message data. */
+	public InputStream openStream() throws IOException {
+		return (data != null) ? new ByteArrayInputStream(data) : new FileInputStream(file);
+	}
+
+	/** Writes the raw message data to the stream. */
+	public void writeTo(OutputStream out) throws IOException {
+		if (data != null) {
+			out.write(data);
+			return;
+		}
+		try (InputStream in = openStream()) {
+			byte[] buf = new byte[8192];
+			int len;
+			while ((len = in.read(buf)) != -1)
+				out.write(buf, 0, len);
+		}
+	}
+
+	/** Returns the parsed MIME message. */
+	public synchronized MimeMessage getMimeMessage() throws MessagingException {
+		if (message == null) {
+			if (data != null)
+				message = Utils.toMimeMessage(new SharedByteArrayInputStream(data));
+			else {
+				try {
+					fileStream = new SharedFileInputStream(file);
+				} catch (IOException e) {
+					throw new MessagingException("Failed to open message file.", e);
+				}
+				message = Utils.toMimeMessage(fileStream);
+			}
+		}
+		return message;
+	}
+
+	/** Returns the subject, or null if none. */
+	public synchronized String getSubject() throws MessagingException {
+		parseHeaders();
+		return subject;
+	}
+
+	/** Returns the sent date, or null if none. */
+	public synchronized Date getSentDate() throws MessagingException {
+		parseHeaders();
+		return sentDate;
+	}
+
+	/** Reads the header values. */
+	private void parseHeaders() throws MessagingException {
+		if (headersParsed)
+			return;
+		MimeMessage message = getMimeMessage();
+		subject = message.getSubject();
+		sentDate = message.getSentDate();
+		headersParsed = true;
+	}
+
+	/** Returns the HTML part, or null if not found. */
+	public synchronized String getHtml() throws MessagingException, IOException {
+		if (!htmlParsed) {
+			html = Utils.getHtmlFromMessage(getMimeMessage());
+			htmlParsed = true;
+		}
+		return html;
+	}
+
+	/** Returns the plain-text part, or null if not found. */
+	public synchronized String getText() throws MessagingException, IOException {
+		if (!textParsed) {
+			text = Utils.getTextFromMessage(getMimeMessage());
+			textParsed = true;
+		}
+		return text;
+	}
+
+	/**
+	 * Returns the links extracted from the HTML part, or null if there is no
+	 * HTML part. (The extractor may be shared with other messages, and must
+	 * not be modified.)
+	 */
+	public synchronized LinkExtractor getLinkExtractor() throws MessagingException, IOException {
+		if (!linksExtracted) {
+			String html = getHtml();
+			if (html != null) {
+				HashCode hash = Hashing.sha256().hashString(html, StandardCharsets.UTF_8);
+				extractor = extractorCache.getIfPresent(hash);
+				if (extractor == null) {
+					extractor = new LinkExtractor(html);
+					extractorCache.put(hash, extractor);
+				}
+			}
+			linksExtracted = true;
+		}
+		return extractor;
+	}
+
+	/** Releases the message file, deleting it if requested. */
+	@Override
+	public synchronized void close() {
+		if (fileStream != null) {
+			try {
+				fileStream.close();
+			} catch (IOException e) {}
+			fileStream = null;
+		}
+		if (file != null && deleteOnClose && file.exists() && !file.delete())
+			logger.warn("Failed to delete message file '{}'.", file.getAbsolutePath());
+	}
+}
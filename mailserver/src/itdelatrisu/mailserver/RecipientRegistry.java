@@ -0,0 +1,86 @@
+package itdelatrisu.mailserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+
+/**
+ * In-memory registry of mail recipients.
+ * <p>
+ * Holds a Bloom filter of all known email addresses, so that mail to unknown
+ * recipients can be rejected without querying the database, and a bounded
+ * LRU cache of recently-used user records.
+ */
+public class RecipientRegistry {
+	/** Expected number of email addresses (the false positive rate rises beyond this). */
+	private static final int EXPECTED_RECIPIENTS = 1000000;
+
+	/** Bloom filter false positive probability. */
+	private static final double FALSE_POSITIVE_PROBABILITY = 0.001;
+
+	/** Maximum number of cached user records. */
+	private static final int USER_CACHE_SIZE = 10000;
+
+	/** Bloom filter of all email addresses (normalized). */
+	private final BloomFilter<CharSequence> recipients;
+
+	/** Cache of user records: email address (normalized) -> user. */
+	private final Cache<String, MailDB.MailUser> users;
+
+	/** Whether all email addresses have been loaded into the filter. */
+	private volatile boolean loaded = false;
+
+	/** Creates an empty registry. */
+	public RecipientRegistry() {
+		this.recipients = BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8), EXPECTED_RECIPIENTS, FALSE_POSITIVE_PROBABILITY);
+		this.users = CacheBuilder.newBuilder().maximumSize(USER_CACHE_SIZE).recordStats().build();
+	}
+
+	/** Normalizes an email address (addresses are compared case-insensitively). */
+	private static String normalize(String email) { return email.toLowerCase(Locale.ROOT); }
+
+	/** Adds an email address to the registry. */
+	public void add(String email) {
+		synchronized (recipients) {
+			recipients.put(normalize(email));
+		}
+	}
+
+	/** Marks the registry as containing all email addresses. */
+	public void setLoaded() { loaded = true; }
+
+	/**
+	 * Returns false if the email address is definitely not registered, or
+	 * true if it might be (or if the registry has not been fully loaded).
+	 */
+	public boolean mightContain(String email) {
+		if (!loaded)
+			return true;
+		synchronized (recipients) {
+			return recipients.mightContain(normalize(email));
+		}
+	}
+
+	/** Returns the cached user record for the email address, or null if not cached. */
+	public MailDB.MailUser getUser(String email) {
+		return users.getIfPresent(normalize(email));
+	}
+
+	/** Caches a user record. */
+	public void putUser(MailDB.MailUser user) {
+		users.put(normalize(user.getEmail()), user);
+	}
+
+	/** Removes a cached user record. */
+	public void invalidateUser(String email) {
+		users.invalidate(normalize(email));
+	}
+
+	/** Returns the user cache statistics. */
+	public CacheStats getUserCacheStats() { return users.stats(); }
+}
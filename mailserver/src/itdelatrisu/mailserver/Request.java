@@ -1,31 +1,51 @@
 package itdelatrisu.mailserver;
 
 import java.io.IOException;
-import java.net.CookieHandler;
+import java.io.InterruptedIOException;
 import java.net.CookieManager;
-import java.net.CookieStore;
 import java.net.HttpCookie;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.SocketTimeoutException;
 import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.http.HttpField;
+import org.eclipse.jetty.http.HttpMethod;
 
 /**
  * Handles making requests to a URL.
+ * <p>
+ * Requests are made asynchronously through an {@link HttpEngine}, following
+ * redirects manually so that the whole chain is recorded. Each request has
+ * its own cookie jar.
  */
 public class Request {
 	/** Maximum number of HTTP/HTTPS redirects to follow. */
 	private static final int MAX_REDIRECTS = 50;
 
-	/** Connection timeout (in ms). */
-	private static final int CONNECTION_TIMEOUT = 5000;
-
 	/** Read timeout (in ms). */
 	private static final int READ_TIMEOUT = 10000;
 
+	/** Maximum response body size (in bytes) to read before closing the connection. */
+	private static final int MAX_CONTENT_LENGTH = 1024 * 1024;
+
+	/** The HTTP engine. */
+	private final HttpEngine engine;
+
 	/** The URL. */
 	private final URL url;
 
@@ -35,42 +55,34 @@ public class Request {
 	/** The list of cookies. */
 	private final List<HttpCookie> cookies;
 
+	/** The cookie jar. */
+	private final CookieManager cookieManager;
+
 	/** The last HTTP response code received. */
-	private int status = -1;
+	private volatile int status = -1;
+
+	/** The number of redirects followed. */
+	private int redirectCount = 0;
 
 	/**
-	 * Thread-local cookie store.
-	 * @author DavidBlackledge (http://stackoverflow.com/a/17513786)
+	 * Constructor.
+	 * @param url the URL to request
 	 */
-	private static class ThreadLocalCookieStore implements CookieStore {
-		private final static ThreadLocal<CookieStore> store = new ThreadLocal<CookieStore>() {
-			@Override
-			protected synchronized CookieStore initialValue() {
-				return (new CookieManager()).getCookieStore();
-			}
-		};
-		@Override public void add(URI uri, HttpCookie cookie) { store.get().add(uri, cookie); }
-		@Override public List<HttpCookie> get(URI uri) { return store.get().get(uri); }
-		@Override public List<HttpCookie> getCookies() { return store.get().getCookies(); }
-		@Override public List<URI> getURIs() { return store.get().getURIs(); }
-		@Override public boolean remove(URI uri, HttpCookie cookie) { return store.get().remove(uri, cookie); }
-		@Override public boolean removeAll() { return store.get().removeAll(); }
-	}
-
-	/** The cookie manager. */
-	private static final CookieManager cookieManager = new CookieManager(new ThreadLocalCookieStore(), null);
-	static {
-		CookieHandler.setDefault(cookieManager);
+	public Request(String url) throws MalformedURLException {
+		this(url, HttpEngine.getDefault());
 	}
 
 	/**
 	 * Constructor.
 	 * @param url the URL to request
+	 * @param engine the HTTP engine
 	 */
-	public Request(String url) throws MalformedURLException {
+	public Request(String url, HttpEngine engine) throws MalformedURLException {
+		this.engine = engine;
 		this.url = new URL(url);
 		this.redirects = new ArrayList<URL>();
 		this.cookies = new ArrayList<HttpCookie>();
+		this.cookieManager = new CookieManager();
 	}
 
 	/** Returns the requested URL. */
@@ -85,58 +97,155 @@ public class Request {
 	/** Returns the last HTTP response code received. */
 	public int getResponseCode() { return status; }
 
-	/** Requests the URL.  */
+	/** Requests the URL, blocking until the redirect chain completes. */
 	public void go() throws IOException {
-		// clear previous cookies
-		cookieManager.getCookieStore().removeAll();
-
-		URL requestURL = url;
-		int redirectCount = 0;
-		while (true) {
-			// set connection properties
-			HttpURLConnection conn = (HttpURLConnection) requestURL.openConnection();
-			conn.setConnectTimeout(CONNECTION_TIMEOUT);
-			conn.setReadTimeout(READ_TIMEOUT);
-			conn.setUseCaches(false);
-			conn.setInstanceFollowRedirects(false);
-			conn.setRequestProperty("Accept", "text/html,application/xhtml+xml,application/xml;q=0.9,image/webp,*/*;q=0.8");
-			conn.setRequestProperty("Accept-Encoding", "gzip, deflate, sdch, br");
-			conn.setRequestProperty("Accept-Language", "en-US,en;q=0.8");
-			conn.setRequestProperty("User-Agent", "Mozilla/5.0 (Windows NT 10.0; WOW64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/56.0.2924.87 Safari/537.36");
-
-			// check for redirects
-			try {
-				status = conn.getResponseCode();
-			} catch (SocketTimeoutException e) {
-				break;  // read timed out
+		try {
+			goAsync().get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * Requests the URL without blocking.
+	 * @return a future that completes (with this request) when the redirect chain completes
+	 */
+	public CompletableFuture<Request> goAsync() {
+		CompletableFuture<Request> future = new CompletableFuture<Request>();
+		engine.requestStarted();
+		future.whenComplete((r, e) -> engine.requestFinished());
+		send(url, future);
+		return future;
+	}
+
+	/** Sends a request for one hop of the redirect chain. */
+	private void send(final URL requestURL, final CompletableFuture<Request> future) {
+		final URI uri;
+		try {
+			uri = toURI(requestURL);
+		} catch (URISyntaxException e) {
+			future.completeExceptionally(new IOException(String.format("Invalid URL '%s'.", requestURL), e));
+			return;
+		}
+
+		// set request properties
+		org.eclipse.jetty.client.api.Request req = engine.getClient().newRequest(uri)
+			.method(HttpMethod.GET)
+			.followRedirects(false)
+			.idleTimeout(READ_TIMEOUT, TimeUnit.MILLISECONDS)
+			.header("Accept", "text/html,application/xhtml+xml,application/xml;q=0.9,image/webp,*/*;q=0.8")
+			.header("Accept-Encoding", "gzip, deflate, sdch, br")
+			.header("Accept-Language", "en-US,en;q=0.8")
+			.agent("Mozilla/5.0 (Windows NT 10.0; WOW64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/56.0.2924.87 Safari/537.36");
+		try {
+			for (Map.Entry<String, List<String>> entry : cookieManager.get(uri, Collections.<String, List<String>>emptyMap()).entrySet()) {
+				for (String value : entry.getValue())
+					req.header(entry.getKey(), value);
+			}
+		} catch (IOException e) {}
+
+		req.send(new Response.Listener.Adapter() {
+			/** Number of response body bytes received. */
+			private long contentLength = 0;
+
+			/** Whether the response was aborted after the headers were received. */
+			private boolean truncated = false;
+
+			@Override
+			public void onHeaders(Response response) {
+				status = response.getStatus();
+
+				// store new cookies
+				Map<String, List<String>> headers = new HashMap<String, List<String>>();
+				for (HttpField field : response.getHeaders()) {
+					List<String> values = headers.get(field.getName());
+					if (values == null) {
+						values = new ArrayList<String>();
+						headers.put(field.getName(), values);
+					}
+					values.add(field.getValue());
+				}
+				try {
+					cookieManager.put(uri, headers);
+				} catch (IOException e) {}
 			}
-			if (status != HttpURLConnection.HTTP_MOVED_TEMP && status != HttpURLConnection.HTTP_MOVED_PERM &&
-			    status != HttpURLConnection.HTTP_SEE_OTHER && status != HttpURLConnection.HTTP_USE_PROXY) {
-				conn.disconnect();
-				break;
+
+			@Override
+			public void onContent(Response response, ByteBuffer content) {
+				// discard the body, but don't download huge ones
+				contentLength += content.remaining();
+				if (contentLength > MAX_CONTENT_LENGTH) {
+					truncated = true;
+					response.abort(new IOException("Response body too large."));
+				}
 			}
 
-			URL base = conn.getURL();
-			String location = conn.getHeaderField("Location");
-			URL target = (location != null) ? new URL(base, location) : null;
-			conn.disconnect();
-
-			// check for problems
-			if (location == null)
-				throw new IOException(String.format("Request for URL '%s' is attempting to redirect without a 'location' header.", base.toString()));
-			if (!target.getProtocol().equals("http") && !target.getProtocol().equals("https"))
-				throw new IOException(String.format("Request for URL '%s' is attempting to redirect to a non-HTTP/HTTPS protocol '%s'.", base.toString(), target.getProtocol()));
-			if (redirectCount > MAX_REDIRECTS)
-				throw new IOException(String.format("Request for URL '%s' is attempting too many redirects (over %d).", base.toString(), MAX_REDIRECTS));
-
-			// follow redirect
-			requestURL = target;
-			redirects.add(target);
-			redirectCount++;
+			@Override
+			public void onComplete(Result result) {
+				if (result.isFailed() && !truncated) {
+					Throwable failure = result.getFailure();
+					if (failure instanceof TimeoutException || failure instanceof SocketTimeoutException)
+						finish(future);  // timed out
+					else
+						future.completeExceptionally(failure instanceof IOException ? failure : new IOException(failure));
+					return;
+				}
+				try {
+					next(requestURL, result.getResponse(), future);
+				} catch (Exception e) {
+					future.completeExceptionally(e);
+				}
+			}
+		});
+	}
+
+	/** Follows a redirect in the given response, or completes the request if there is none. */
+	private void next(URL base, Response response, CompletableFuture<Request> future) throws IOException {
+		// check for redirects
+		int code = response.getStatus();
+		if (code != HttpURLConnection.HTTP_MOVED_TEMP && code != HttpURLConnection.HTTP_MOVED_PERM &&
+		    code != HttpURLConnection.HTTP_SEE_OTHER && code != HttpURLConnection.HTTP_USE_PROXY) {
+			finish(future);
+			return;
 		}
 
+		String location = response.getHeaders().get("Location");
+		URL target = (location != null) ? new URL(base, location) : null;
+
+		// check for problems
+		if (location == null)
+			throw new IOException(String.format("Request for URL '%s' is attempting to redirect without a 'location' header.", base.toString()));
+		if (!target.getProtocol().equals("http") && !target.getProtocol().equals("https"))
+			throw new IOException(String.format("Request for URL '%s' is attempting to redirect to a non-HTTP/HTTPS protocol '%s'.", base.toString(), target.getProtocol()));
+		if (redirectCount > MAX_REDIRECTS)
+			throw new IOException(String.format("Request for URL '%s' is attempting too many redirects (over %d).", base.toString(), MAX_REDIRECTS));
+
+		// follow redirect
+		redirects.add(target);
+		redirectCount++;
+		send(target, future);
+	}
+
+	/** Completes the request. */
+	private void finish(CompletableFuture<Request> future) {
 		// store new cookies
 		for (HttpCookie c : cookieManager.getCookieStore().getCookies())
 			cookies.add((HttpCookie) c.clone());
+		future.complete(this);
+	}
+
+	/** Converts a URL to a URI, escaping any illegal characters. */
+	private static URI toURI(URL url) throws URISyntaxException {
+		try {
+			return url.toURI();
+		} catch (URISyntaxException e) {
+			return new URI(url.getProtocol(), url.getUserInfo(), url.getHost(), url.getPort(), url.getPath(), url.getQuery(), url.getRef());
+		}
 	}
 }
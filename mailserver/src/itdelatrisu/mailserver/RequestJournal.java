@@ -0,0 +1,345 @@
+package itdelatrisu.mailserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only on-disk journal of scheduled requests.
+ * <p>
+ * Each request is journaled before it is scheduled, and marked done when it
+ * completes; requests not marked done are returned by {@link #replay()} on
+ * the next startup. Records are length-prefixed and checksummed, so a torn
+ * write at the end of the file is discarded. Appends from all threads are
+ * written and synced together by a single writer thread (group commit).
+ */
+public class RequestJournal {
+	private static final Logger logger = LoggerFactory.getLogger(RequestJournal.class);
+
+	/** Default journal file. */
+	public static final File DEFAULT_FILE = new File("journal", "requests.log");
+
+	/** Journal size (in bytes) above which it is compacted. */
+	private static final long COMPACT_THRESHOLD = 64 * 1024 * 1024;
+
+	/** Maximum size (in bytes) of a single record. */
+	private static final int MAX_RECORD_SIZE = 64 * 1024;
+
+	/** Record types. */
+	private static final byte RECORD_ADD = 1, RECORD_DONE = 2;
+
+	/** A journaled request. */
+	public static class Entry {
+		public final long id;
+		public final String url, type, senderDomain, senderAddress;
+		public final int recipientId;
+
+		/** Constructor. */
+		private Entry(long id, String url, String type, String senderDomain, String senderAddress, int recipientId) {
+			this.id = id;
+			this.url = url;
+			this.type = type;
+			this.senderDomain = senderDomain;
+			this.senderAddress = senderAddress;
+			this.recipientId = recipientId;
+		}
+	}
+
+	/** A record waiting to be written. */
+	private static class PendingWrite {
+		private final byte[] record;
+		private final Entry entry;  // for RECORD_ADD
+		private final long doneId;  // for RECORD_DONE
+		private final CompletableFuture<Void> committed;
+
+		/** Constructor. */
+		private PendingWrite(byte[] record, Entry entry, long doneId, CompletableFuture<Void> committed) {
+			this.record = record;
+			this.entry = entry;
+			this.doneId = doneId;
+			this.committed = committed;
+		}
+	}
+
+	/** Marker record queued by {@link #close()}. */
+	private static final PendingWrite CLOSE = new PendingWrite(null, null, 0, null);
+
+	/** The journal file. */
+	private final File file;
+
+	/** The file channel (owned by the writer thread after startup). */
+	private FileChannel channel;
+
+	/** Requests not yet marked done: ID -> entry (accessed by the writer thread only). */
+	private final Map<Long, Entry> pending = new LinkedHashMap<Long, Entry>();
+
+	/** Requests pending at startup. */
+	private final List<Entry> replayed;
+
+	/** The next request ID. */
+	private long nextId = 1;
+
+	/** Records waiting to be written. */
+	private final BlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<PendingWrite>();
+
+	/** The writer thread. */
+	private final Thread writer;
+
+	/** Whether the journal is closing. */
+	private volatile boolean closed = false;
+
+	/** Opens the default journal. */
+	public RequestJournal() throws IOException {
+		this(DEFAULT_FILE);
+	}
+
+	/** Opens the journal, reading any requests left pending by a previous run. */
+	public RequestJournal(File file) throws IOException {
+		this.file = file;
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException(String.format("Failed to create journal directory '%s'.", dir.getAbsolutePath()));
+
+		// read existing records, then rewrite the journal with only the pending ones
+		if (file.isFile())
+			read();
+		this.replayed = new ArrayList<Entry>(pending.values());
+		compact();
+
+		this.writer = new Thread(new Runnable() {
+			@Override
+			public void run() { writeLoop(); }
+		}, "request-journal");
+		writer.start();
+	}
+
+	/** Returns the requests left pending by a previous run (their IDs remain valid for {@link #markDone(long)}). */
+	public List<Entry> replay() { return replayed; }
+
+	/**
+	 * Journals a request, and waits until it is on disk.
+	 * @return the request ID
+	 */
+	public long append(String url, String type, String senderDomain, String senderAddress, int recipientId) throws IOException {
+		try {
+			return appendAsync(url, type, senderDomain, senderAddress, recipientId).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException("Failed to write to request journal.", e.getCause());
+		}
+	}
+
+	/**
+	 * Journals a request.
+	 * @return a future that completes with the request ID once it is on disk
+	 */
+	public CompletableFuture<Long> appendAsync(String url, String type, String senderDomain, String senderAddress, int recipientId) {
+		Entry entry;
+		synchronized (this) {
+			entry = new Entry(nextId++, url, type, senderDomain, senderAddress, recipientId);
+		}
+		CompletableFuture<Void> committed = new CompletableFuture<Void>();
+		try {
+			enqueue(new PendingWrite(encode(RECORD_ADD, entry), entry, 0, committed));
+		} catch (IOException e) {
+			committed.completeExceptionally(e);
+		}
+		final long id = entry.id;
+		return committed.thenApply(v -> id);
+	}
+
+	/** Marks a request as done (without waiting for it to reach the disk). */
+	public void markDone(long id) {
+		if (closed)
+			return;  // will be replayed
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(RECORD_DONE);
+			out.writeLong(id);
+			enqueue(new PendingWrite(frame(bytes.toByteArray()), null, id, null));
+		} catch (IOException e) {
+			logger.error("Failed to mark journaled request as done.", e);
+		}
+	}
+
+	/** Queues a record for the writer thread. */
+	private void enqueue(PendingWrite write) throws IOException {
+		synchronized (queue) {
+			if (closed)
+				throw new IOException("Request journal is closed.");
+			queue.add(write);
+		}
+	}
+
+	/** Writes all queued records, and closes the journal. */
+	public void close() {
+		synchronized (queue) {
+			if (closed)
+				return;
+			closed = true;
+			queue.add(CLOSE);
+		}
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/** Writer thread loop: writes queued records in batches, syncing once per batch. */
+	private void writeLoop() {
+		List<PendingWrite> batch = new ArrayList<PendingWrite>();
+		boolean stop = false;
+		while (!stop) {
+			try {
+				batch.add(queue.take());
+			} catch (InterruptedException e) {
+				continue;
+			}
+			queue.drainTo(batch);
+			if (batch.remove(CLOSE))
+				stop = true;  // always the last record
+			if (batch.isEmpty())
+				continue;
+			try {
+				for (PendingWrite w : batch) {
+					ByteBuffer buf = ByteBuffer.wrap(w.record);
+					while (buf.hasRemaining())
+						channel.write(buf);
+					if (w.entry != null)
+						pending.put(w.entry.id, w.entry);
+					else
+						pending.remove(w.doneId);
+				}
+				channel.force(false);
+				for (PendingWrite w : batch) {
+					if (w.committed != null)
+						w.committed.complete(null);
+				}
+				if (channel.size() > COMPACT_THRESHOLD)
+					compact();
+			} catch (IOException e) {
+				logger.error("Failed to write to request journal.", e);
+				for (PendingWrite w : batch) {
+					if (w.committed != null)
+						w.committed.completeExceptionally(e);
+				}
+			}
+			batch.clear();
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {}
+	}
+
+	/** Rewrites the journal with only the pending requests. */
+	private void compact() throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			for (Entry entry : pending.values()) {
+				ByteBuffer buf = ByteBuffer.wrap(encode(RECORD_ADD, entry));
+				while (buf.hasRemaining())
+					out.write(buf);
+			}
+			out.force(true);
+		}
+		if (channel != null)
+			channel.close();
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	}
+
+	/** Reads all valid records from the journal file. */
+	private void read() throws IOException {
+		int records = 0;
+		try (DataInputStream in = new DataInputStream(Files.newInputStream(file.toPath()))) {
+			while (true) {
+				int length;
+				long checksum;
+				byte[] payload;
+				try {
+					length = in.readInt();
+					checksum = in.readInt() & 0xFFFFFFFFL;
+					if (length <= 0 || length > MAX_RECORD_SIZE)
+						break;
+					payload = new byte[length];
+					in.readFully(payload);
+				} catch (EOFException e) {
+					break;
+				}
+				CRC32 crc = new CRC32();
+				crc.update(payload);
+				if (crc.getValue() != checksum)
+					break;  // torn or corrupt record: ignore the rest
+
+				DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+				byte type = record.readByte();
+				long id = record.readLong();
+				if (type == RECORD_ADD) {
+					String url = record.readUTF(), urlType = record.readUTF();
+					String senderDomain = record.readUTF(), senderAddress = record.readUTF();
+					int recipientId = record.readInt();
+					pending.put(id, new Entry(id, url, urlType, senderDomain, senderAddress, recipientId));
+				} else if (type == RECORD_DONE)
+					pending.remove(id);
+				nextId = Math.max(nextId, id + 1);
+				records++;
+			}
+		}
+		logger.info("Read {} request journal records ({} pending).", records, pending.size());
+	}
+
+	/** Encodes a request record. */
+	private static byte[] encode(byte type, Entry entry) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(type);
+		out.writeLong(entry.id);
+		out.writeUTF(entry.url);
+		out.writeUTF(entry.type);
+		out.writeUTF(entry.senderDomain);
+		out.writeUTF(entry.senderAddress);
+		out.writeInt(entry.recipientId);
+		return frame(bytes.toByteArray());
+	}
+
+	/** Prefixes a record payload with its length and checksum. */
+	private static byte[] frame(byte[] payload) throws IOException {
+		if (payload.length > MAX_RECORD_SIZE)
+			throw new IOException("Request journal record is too large.");
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		ByteBuffer buf = ByteBuffer.allocate(8 + payload.length);
+		buf.putInt(payload.length);
+		buf.putInt((int) crc.getValue());
+		buf.put(payload);
+		return buf.array();
+	}
+}
@@ -0,0 +1,204 @@
+package itdelatrisu.mailserver;
+
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONTokener;
+
+/**
+ * Streaming reader for link group results (as submitted to {@code /results}).
+ * <p>
+ * Accepts either a single group object or an array of them:
+ * {@code {id: int, requests: [[url, topLevelUrl, referrer, postBody], []...]}}.
+ * Requests are passed to a {@link Listener} one at a time as they are read,
+ * so the payload is never held in memory as a whole. (If a group's requests
+ * come before its ID, they are buffered until the ID is read.)
+ */
+public class ResultsReader {
+	/** Receives link group results as they are read. */
+	public interface Listener {
+		/**
+		 * Called when a group's ID is read, before any of its requests.
+		 * @return false to skip the group's requests
+		 */
+		boolean startGroup(int id);
+
+		/**
+		 * Called for each request in the current group. The group may still
+		 * turn out to be malformed, so results should not be committed until
+		 * {@link #endGroup(Object, boolean)}.
+		 * @return false to skip the rest of the group's requests
+		 */
+		boolean request(String url, String topLevelUrl, String referrer, String postBody);
+
+		/**
+		 * Called at the end of each group.
+		 * @param id the group ID as submitted (or null if missing)
+		 * @param valid false if the group was malformed
+		 */
+		void endGroup(Object id, boolean valid);
+	}
+
+	/** The tokener. */
+	private final JSONTokener x;
+
+	/** The listener. */
+	private final Listener listener;
+
+	/** Whether the payload is an array of groups. */
+	private boolean batch = false;
+
+	/** Creates a reader over the given stream. */
+	public ResultsReader(Reader reader, Listener listener) {
+		this.x = new JSONTokener(reader);
+		this.listener = listener;
+	}
+
+	/** Returns whether the payload was an array of groups (valid after {@link #read()}). */
+	public boolean isBatch() { return batch; }
+
+	/**
+	 * Reads the whole payload, passing each group to the listener.
+	 * @throws JSONException if the payload is not well-formed JSON (groups
+	 *         before the error will already have been passed to the listener)
+	 */
+	public void read() throws JSONException {
+		char c = x.nextClean();
+		if (c == '{') {
+			x.back();
+			readGroup();
+		} else if (c == '[') {
+			batch = true;
+			if (x.nextClean() == ']')
+				return;
+			x.back();
+			while (true) {
+				readGroup();
+				c = x.nextClean();
+				if (c == ']')
+					break;
+				if (c != ',')
+					throw x.syntaxError("Expected a ',' or ']'");
+			}
+		} else
+			throw x.syntaxError("Expected a '{' or '['");
+	}
+
+	/** Reads a group object. */
+	private void readGroup() throws JSONException {
+		if (x.nextClean() != '{') {
+			// not an object: skip it
+			x.back();
+			x.nextValue();
+			listener.endGroup(null, false);
+			return;
+		}
+
+		Object id = null;
+		boolean started = false, skip = false, valid = true, hasRequests = false;
+		List<String[]> pending = null;  // requests read before the ID
+		if (x.nextClean() != '}') {
+			x.back();
+			while (true) {
+				String key = x.nextValue().toString();
+				if (x.nextClean() != ':')
+					throw x.syntaxError("Expected a ':' after a key");
+				if (key.equals("id") && id == null) {
+					id = x.nextValue();
+					Integer intId = toInt(id);
+					if (intId == null)
+						valid = false;
+					else if (valid) {
+						started = true;
+						skip = !listener.startGroup(intId);
+						if (pending != null) {
+							for (String[] r : pending) {
+								if (skip)
+									break;
+								skip = !listener.request(r[0], r[1], r[2], r[3]);
+							}
+							pending = null;
+						}
+					}
+				} else if (key.equals("requests") && !hasRequests) {
+					hasRequests = true;
+					if (x.nextClean() != '[') {
+						x.back();
+						x.nextValue();
+						valid = false;
+					} else if (x.nextClean() != ']') {
+						x.back();
+						while (true) {
+							// read one request
+							String[] r = (valid && !skip) ? toRequest(x.nextValue()) : skipValue();
+							if (r == null && valid && !skip)
+								valid = false;
+							else if (r != null) {
+								if (started)
+									skip = !listener.request(r[0], r[1], r[2], r[3]);
+								else {
+									if (pending == null)
+										pending = new ArrayList<String[]>();
+									pending.add(r);
+								}
+							}
+							char c = x.nextClean();
+							if (c == ']')
+								break;
+							if (c != ',')
+								throw x.syntaxError("Expected a ',' or ']'");
+						}
+					}
+				} else
+					x.nextValue();  // ignore other keys
+
+				char c = x.nextClean();
+				if (c == '}')
+					break;
+				if (c != ',')
+					throw x.syntaxError("Expected a ',' or '}'");
+			}
+		}
+		if (id == null || !hasRequests)
+			valid = false;
+		listener.endGroup(id, valid);
+	}
+
+	/** Skips a value, and returns null. */
+	private String[] skipValue() throws JSONException {
+		x.nextValue();
+		return null;
+	}
+
+	/** Converts a request entry to [url, topLevelUrl, referrer, postBody], or returns null if malformed. */
+	private static String[] toRequest(Object value) {
+		if (!(value instanceof JSONArray))
+			return null;
+		JSONArray ar = (JSONArray) value;
+		try {
+			String[] r = new String[4];
+			r[0] = ar.getString(0);
+			r[1] = ar.isNull(1) ? null : ar.getString(1);
+			r[2] = ar.isNull(2) ? null : ar.getString(2);
+			r[3] = ar.isNull(3) ? null : ar.getString(3);
+			return r;
+		} catch (JSONException e) {
+			return null;
+		}
+	}
+
+	/** Converts an ID value to an integer, or returns null if invalid. */
+	private static Integer toInt(Object value) {
+		if (value instanceof Number)
+			return ((Number) value).intValue();
+		if (value instanceof String) {
+			try {
+				return Integer.valueOf((String) value);
+			} catch (NumberFormatException e) {}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,185 @@
+package itdelatrisu.mailserver;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-memory accumulator for the per-user counters in the {@code users} table.
+ * <p>
+ * Increments are merged per user in lock-striped maps, and periodically
+ * written back to the database as a single batch. The accumulator also keeps
+ * running totals since startup, so that user records loaded before an
+ * increment can still report an up-to-date value.
+ * <p>
+ * Counts read from the database lack the pending increments, so they must be
+ * read while holding the {@link #getReadLock() read lock} and combined with a
+ * {@link #getSnapshot(int) snapshot}; a flush can't commit in between.
+ */
+public class UserCounters {
+	private static final Logger logger = LoggerFactory.getLogger(UserCounters.class);
+
+	/** Counter indices. */
+	public static final int EMAILS_RECEIVED = 0, LEAKS = 1, THIRD_PARTY_LEAKS = 2;
+
+	/** Number of counters. */
+	static final int COUNTERS = 3;
+
+	/** Number of stripes (must be a power of 2). */
+	private static final int STRIPES = 16;
+
+	/** Interval (in ms) between writes to the database. */
+	private static final long FLUSH_INTERVAL = 5000;
+
+	/** The database instance. */
+	private final MailDB db;
+
+	/**
+	 * The stripes: user ID -> [pending increments..., running totals...].
+	 * Each map is guarded by its own monitor.
+	 */
+	private final List<Map<Integer, int[]>> stripes;
+
+	/** The flush scheduler. */
+	private final ScheduledExecutorService scheduler;
+
+	/** Lock held for reading counts from the database (shared) and for flushing (exclusive). */
+	private final ReadWriteLock flushLock = new ReentrantReadWriteLock();
+
+	/** Creates the accumulator and starts the periodic flush. */
+	public UserCounters(MailDB db) {
+		this.db = db;
+		this.stripes = new ArrayList<Map<Integer, int[]>>(STRIPES);
+		for (int i = 0; i < STRIPES; i++)
+			stripes.add(new HashMap<Integer, int[]>());
+		this.scheduler = Executors.newSingleThreadScheduledExecutor();
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() { flush(); }
+		}, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/** Returns the stripe for the given user ID. */
+	private Map<Integer, int[]> stripe(int userId) {
+		return stripes.get((userId ^ (userId >>> 16)) & (STRIPES - 1));
+	}
+
+	/** Adds to a counter. */
+	public void add(int userId, int counter, int delta) {
+		if (delta == 0)
+			return;
+		Map<Integer, int[]> map = stripe(userId);
+		synchronized (map) {
+			int[] values = map.get(userId);
+			if (values == null) {
+				values = new int[COUNTERS * 2];
+				map.put(userId, values);
+			}
+			values[counter] += delta;
+			values[COUNTERS + counter] += delta;
+		}
+	}
+
+	/** Returns the running totals (by counter index) added for a user since startup. */
+	public int[] getTotals(int userId) {
+		return Arrays.copyOfRange(getSnapshot(userId), COUNTERS, COUNTERS * 2);
+	}
+
+	/**
+	 * Returns the increments for a user not yet written to the database,
+	 * followed by the running totals added since startup (by counter index).
+	 */
+	public int[] getSnapshot(int userId) {
+		int[] snapshot = new int[COUNTERS * 2];
+		Map<Integer, int[]> map = stripe(userId);
+		synchronized (map) {
+			int[] values = map.get(userId);
+			if (values != null)
+				System.arraycopy(values, 0, snapshot, 0, COUNTERS * 2);
+		}
+		return snapshot;
+	}
+
+	/** Returns the lock to hold while reading counts from the database (no flush commits while it is held). */
+	public Lock getReadLock() { return flushLock.readLock(); }
+
+	/** Writes all pending increments to the database. */
+	public void flush() {
+		// readers must not see the database updated while the increments are still pending
+		flushLock.writeLock().lock();
+		try {
+			flushPending();
+		} finally {
+			flushLock.writeLock().unlock();
+		}
+	}
+
+	/** Writes all pending increments to the database (holding the flush lock). */
+	private void flushPending() {
+		// collect and reset pending increments
+		Map<Integer, int[]> deltas = new HashMap<Integer, int[]>();
+		for (Map<Integer, int[]> map : stripes) {
+			synchronized (map) {
+				for (Map.Entry<Integer, int[]> entry : map.entrySet()) {
+					int[] values = entry.getValue();
+					boolean pending = false;
+					for (int i = 0; i < COUNTERS; i++) {
+						if (values[i] != 0)
+							pending = true;
+					}
+					if (!pending)
+						continue;
+					int[] delta = new int[COUNTERS];
+					System.arraycopy(values, 0, delta, 0, COUNTERS);
+					for (int i = 0; i < COUNTERS; i++)
+						values[i] = 0;
+					deltas.put(entry.getKey(), delta);
+				}
+			}
+		}
+		if (deltas.isEmpty())
+			return;
+
+		// write to database
+		try {
+			long startTime = System.nanoTime();
+			db.updateUserCounters(deltas);
+			logger.debug("Updated counters for {} users in {} ms.", deltas.size(), (System.nanoTime() - startTime) / 1000000);
+		} catch (SQLException e) {
+			logger.error("Failed to update user counters, will retry.", e);
+
+			// restore pending increments
+			for (Map.Entry<Integer, int[]> entry : deltas.entrySet()) {
+				Map<Integer, int[]> map = stripe(entry.getKey());
+				synchronized (map) {
+					int[] values = map.get(entry.getKey());
+					for (int i = 0; i < COUNTERS; i++)
+						values[i] += entry.getValue()[i];
+				}
+			}
+		}
+	}
+
+	/** Stops the periodic flush, and writes all pending increments. */
+	public void shutdown() {
+		scheduler.shutdown();
+		try {
+			scheduler.awaitTermination(FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		flush();
+	}
+}
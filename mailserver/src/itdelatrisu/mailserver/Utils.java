@@ -80,8 +80,12 @@ public class Utils {
 
 	/** Parses mail data into a MimeMessage. */
 	public static MimeMessage toMimeMessage(String content) throws MessagingException {
+		return toMimeMessage(new ByteArrayInputStream(content.getBytes()));
+	}
+
+	/** Parses mail data from the stream into a MimeMessage. */
+	public static MimeMessage toMimeMessage(InputStream is) throws MessagingException {
 		Session s = Session.getDefaultInstance(new Properties());
-		InputStream is = new ByteArrayInputStream(content.getBytes());
 		return new MimeMessage(s, is);
 	}
 
@@ -0,0 +1,77 @@
+package itdelatrisu.mailserver;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Access to virtual threads (Java 21+), without requiring them at build time.
+ * <p>
+ * Virtual threads are only used if the corresponding system property is set
+ * and the running JVM supports them. They are accessed by reflection, so the
+ * Java 8 build uses them when run on Java 21+.
+ */
+public class VirtualThreads {
+	/** System property enabling virtual threads for recording request results. */
+	public static final String REQUESTS_PROPERTY = "mailserver.virtualThreads";
+
+	/** System property enabling virtual threads for the incoming mail pipeline. */
+	public static final String DELIVERY_PROPERTY = "mailserver.virtualThreads.delivery";
+
+	/** The {@code Thread.ofVirtual()} method, or null if unsupported. */
+	private static final Method OF_VIRTUAL;
+	static {
+		Method m;
+		try {
+			m = Thread.class.getMethod("ofVirtual");
+		} catch (NoSuchMethodException e) {
+			m = null;
+		}
+		OF_VIRTUAL = m;
+	}
+
+	/** This class should not be instantiated. */
+	private VirtualThreads() {}
+
+	/** Returns whether the running JVM supports virtual threads. */
+	public static boolean isSupported() { return OF_VIRTUAL != null; }
+
+	/** Returns whether virtual threads are enabled by the given system property (and supported). */
+	public static boolean isEnabled(String property) {
+		return Boolean.getBoolean(property) && isSupported();
+	}
+
+	/** Returns an executor that runs each task on a new virtual thread. */
+	public static ExecutorService newExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			throw new UnsupportedOperationException("Virtual threads are not supported.", e);
+		}
+	}
+
+	/** Returns an executor that runs each task on a new virtual thread named {@code <prefix><n>}. */
+	public static ExecutorService newExecutor(String prefix) {
+		ThreadFactory factory = newThreadFactory(prefix);
+		try {
+			return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, factory);
+		} catch (ReflectiveOperationException e) {
+			throw new UnsupportedOperationException("Virtual threads are not supported.", e);
+		}
+	}
+
+	/** Returns a factory for virtual threads named {@code <prefix><n>}. */
+	public static ThreadFactory newThreadFactory(String prefix) {
+		if (!isSupported())
+			throw new UnsupportedOperationException("Virtual threads are not supported.");
+		try {
+			Object builder = OF_VIRTUAL.invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 1L);
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		} catch (ReflectiveOperationException e) {
+			throw new UnsupportedOperationException("Virtual threads are not supported.", e);
+		}
+	}
+}
@@ -1,15 +1,24 @@
 package itdelatrisu.mailserver;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Objects;
 import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletRequestWrapper;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -29,6 +38,9 @@ public class WebServer {
 	/** Default port. */
 	private static final int DEFAULT_PORT = 8080;
 
+	/** Maximum number of link groups handed out by a single /visit request. */
+	private static final int MAX_VISIT_BATCH_SIZE = 100;
+
 	/** The database instance. */
 	private final MailDB db;
 
@@ -99,219 +111,442 @@ public class WebServer {
 	}
 
 	/**
-	 * Retrieves a group of URLs to visit.
+	 * Retrieves a group of URLs to visit, or a batch of groups if a count is given.
 	 * GET /visit -> {id: int, links: [string...]}
+	 * GET /visit?count=N -> [{id: int, links: [string...]}, {}...]
 	 */
 	private String visit(spark.Request request, spark.Response response) {
-		// get a random link group
-		MailDB.LinkGroup linkGroup;
-		try {
-			linkGroup = db.getLinkGroup();
-			if (linkGroup == null) {
-				response.type("application/json");
-				return "{}";
+		// parse request data
+		String countParam = request.queryParams("count");
+		int count = 1;
+		if (countParam != null) {
+			try {
+				count = Integer.parseInt(countParam);
+			} catch (NumberFormatException e) {
+				return badRequest(response);
 			}
+			if (count < 1)
+				return badRequest(response);
+			count = Math.min(count, MAX_VISIT_BATCH_SIZE);
+		}
+
+		// lease random link groups
+		List<MailDB.LinkGroup> linkGroups;
+		try {
+			linkGroups = db.leaseLinkGroups(count);
 		} catch (SQLException e) {
 			logger.error("Failed to retrieve link group.", e);
 			return internalServerError(response);
 		}
 
-		logger.info("/visit -> ID {} ({} links)", linkGroup.getId(), linkGroup.getUrls().length);
-
 		// encode the data
-		JSONObject json = new JSONObject();
-		json.put("id", linkGroup.getId());
-		json.put("links", new JSONArray(linkGroup.getUrls()));
+		JSONArray groupsJson = new JSONArray();
+		for (MailDB.LinkGroup linkGroup : linkGroups) {
+			logger.info("/visit -> ID {} ({} links)", linkGroup.getId(), linkGroup.getUrls().length);
+			JSONObject json = new JSONObject();
+			json.put("id", linkGroup.getId());
+			json.put("links", new JSONArray(linkGroup.getUrls()));
+			groupsJson.put(json);
+		}
 		response.type("application/json");
-		return json.toString();
+		if (countParam != null)
+			return groupsJson.toString();
+		return groupsJson.length() == 0 ? "{}" : groupsJson.getJSONObject(0).toString();
+	}
+
+	/** Status of a submitted link group result. */
+	private enum ResultStatus {
+		OK ("ok"), INVALID ("invalid"), NOT_FOUND ("not_found"), ERROR ("error");
+
+		/** The status name. */
+		private final String name;
+
+		/** Constructor. */
+		ResultStatus(String name) { this.name = name; }
+
+		/** Returns the status name. */
+		public String getName() { return name; }
 	}
 
 	/**
-	 * Submits all requests generated from a group of URLs (from {@link #visit(spark.Request, spark.Response)}).
+	 * Submits all requests generated from a group of URLs (from {@link #visit(spark.Request, spark.Response)}),
+	 * or from a batch of groups.
 	 * POST /results : {id: int, requests: [[url, topLevelUrl, referrer, postBody], []...]}
+	 * POST /results : [{id: int, requests: [...]}, {}...] -> [{id: int, status: string}, {}...]
 	 */
 	private String results(spark.Request request, spark.Response response) {
-		if (request.body().isEmpty())
+		// stream the request body (bypassing Spark's wrapper, which buffers it)
+		ServletRequest raw = request.raw();
+		while (raw instanceof ServletRequestWrapper)
+			raw = ((ServletRequestWrapper) raw).getRequest();
+		ResultsHandler handler = new ResultsHandler();
+		ResultsReader reader;
+		try {
+			InputStream in = raw.getInputStream();
+
+			// handle GZIP encoding
+			String contentEncoding = request.headers("Content-Encoding");
+			if (contentEncoding != null && contentEncoding.equals("gzip"))
+				in = new GZIPInputStream(in);
+
+			// decode and process request data
+			reader = new ResultsReader(new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)), handler);
+			reader.read();
+		} catch (IOException e) {
+			return internalServerError(response);
+		} catch (JSONException e) {
 			return badRequest(response);
+		}
 
-		// handle GZIP encoding
-		String contentEncoding = request.headers("Content-Encoding");
-		String requestBody;
-		if (contentEncoding != null && contentEncoding.equals("gzip")) {
-			try {
-				requestBody = Utils.gzipDecompress(request.bodyAsBytes());
-			} catch (IOException e) {
+		// single group
+		if (!reader.isBatch()) {
+			switch (handler.statuses.get(0)) {
+			case OK:
+				return "";
+			case ERROR:
 				return internalServerError(response);
+			default:
+				return badRequest(response);
 			}
-		} else
-			requestBody = request.body();
+		}
 
-		// decode request data
-		MailDB.LinkGroup linkGroup;
-		String[][] urls;
-		try {
-			JSONObject json = new JSONObject(requestBody);
-			if (!json.has("id") || !json.has("requests"))
-				return badRequest(response);
+		// batch of groups: report the status of each
+		logger.info("/results: batch of {} groups", handler.statuses.size());
+		response.type("application/json");
+		return handler.statusJson.toString();
+	}
 
-			// parse the URL list
-			JSONArray urlsJson = json.getJSONArray("requests");
-			urls = new String[urlsJson.length()][4];
-			for (int i = 0; i < urlsJson.length(); i++) {
-				JSONArray ar = urlsJson.getJSONArray(i);
-				urls[i][0] = ar.getString(0);
-				urls[i][1] = ar.isNull(1) ? null : ar.getString(1);
-				urls[i][2] = ar.isNull(2) ? null : ar.getString(2);
-				urls[i][3] = ar.isNull(3) ? null : ar.getString(3);
-			}
+	/** Processes link group results as they are read, and records the status of each group. */
+	private class ResultsHandler implements ResultsReader.Listener {
+		/** The status of each group, in order. */
+		private final List<ResultStatus> statuses = new ArrayList<ResultStatus>();
+
+		/** The status of each group, as JSON. */
+		private final JSONArray statusJson = new JSONArray();
+
+		/** The current link group (or null if not found). */
+		private MailDB.LinkGroup linkGroup;
+
+		/** The current group's base URLs. */
+		private Set<String> baseUrls;
+
+		/** The encoding matcher for the current group's recipient. */
+		private EncodingMatcher matcher;
 
+		/** The top-level URL of the current group's last request. */
+		private TopLevelUrl topLevel;
+
+		/** The current group's status. */
+		private ResultStatus status;
+
+		/** The number of requests received for the current group. */
+		private int requestCount;
+
+		/** The leaks found in the current group (recorded only if the whole group is valid). */
+		private final List<LeakRecord> leaks = new ArrayList<LeakRecord>();
+
+		@Override
+		public boolean startGroup(int id) {
 			// get the link group data
-			int id = json.getInt("id");
-			linkGroup = db.getLinkGroup(id);
-			if (linkGroup == null)
-				return badRequest(response);
-		} catch (JSONException e) {
-			return badRequest(response);
-		} catch (SQLException e) {
-			return internalServerError(response);
-		}
+			try {
+				linkGroup = db.getLinkGroup(id);
+				if (linkGroup == null) {
+					status = ResultStatus.NOT_FOUND;
+					return false;
+				}
+			} catch (SQLException e) {
+				status = ResultStatus.ERROR;
+				return false;
+			}
 
-		logger.info("/results: ID {} (received {} results)", linkGroup.getId(), urls.length);
+			// get recipient email
+			MailDB.MailUser user;
+			try {
+				user = db.getUserInfo(linkGroup.getRecipientId());
+				if (user == null) {
+					status = ResultStatus.NOT_FOUND;
+					return false;
+				}
+			} catch (SQLException e) {
+				status = ResultStatus.ERROR;
+				return false;
+			}
 
-		// get recipient email
-		MailDB.MailUser user;
-		try {
-			user = db.getUserInfo(linkGroup.getRecipientId());
-			if (user == null)
-				return badRequest(response);
-		} catch (SQLException e) {
-			return internalServerError(response);
+			baseUrls = new HashSet<String>(Arrays.asList(linkGroup.getUrls()));
+			matcher = HashChecker.getMatcher(user.getEmail());
+			status = ResultStatus.OK;
+			return true;
 		}
 
-		// check for leaked email address in URLs
-		Set<String> baseUrls = new HashSet<String>(Arrays.asList(linkGroup.getUrls()));
-		List<HashChecker.NamedValue<String>> encodings = HashChecker.getEncodings(user.getEmail());
-		for (String[] container : urls) {
-			String url = container[0], topLevelUrl = container[1], referrer = container[2], postBody = container[3];
+		@Override
+		public boolean request(String url, String topLevelUrl, String referrer, String postBody) {
+			requestCount++;
 			if (baseUrls.contains(url))
-				continue;  // skip the base URL
+				return true;  // skip the base URL
+
+			// check for leaked email address in URLs
+			if (topLevel == null || !Objects.equals(topLevel.url, topLevelUrl))
+				topLevel = new TopLevelUrl(topLevelUrl, matcher);
 			try {
 				findLeakedEmailAddress(
-					url, topLevelUrl, referrer, postBody,
-					encodings, linkGroup.getRecipientId(), linkGroup.getSenderDomain(), linkGroup.getSenderAddress()
+					url, topLevel, referrer, postBody,
+					matcher, linkGroup.getRecipientId(), linkGroup.getSenderDomain(), linkGroup.getSenderAddress(), leaks
 				);
+				return true;
 			} catch (Exception e) {
-				return internalServerError(response);
+				status = ResultStatus.ERROR;
+				return false;
 			}
 		}
 
-		// remove the link group
-		try {
-			db.removeLinkGroup(linkGroup.getId());
-		} catch (SQLException e) {
-			logger.error("Failed to remove link group.", e);
+		@Override
+		public void endGroup(Object id, boolean valid) {
+			if (!valid && status != ResultStatus.ERROR && status != ResultStatus.NOT_FOUND)
+				status = ResultStatus.INVALID;
+			if (status == ResultStatus.OK) {
+				logger.info("/results: ID {} (received {} results)", linkGroup.getId(), requestCount);
+
+				// record the leaks
+				for (LeakRecord leak : leaks)
+					db.addLeakedEmailAddress(leak);
+
+				// remove the link group
+				try {
+					db.removeLinkGroup(linkGroup.getId());
+				} catch (SQLException e) {
+					logger.error("Failed to remove link group.", e);
+				}
+			}
+
+			statuses.add(status);
+			JSONObject obj = new JSONObject();
+			obj.put("id", (id == null) ? JSONObject.NULL : id);
+			obj.put("status", status.getName());
+			statusJson.put(obj);
+
+			// reset for the next group
+			linkGroup = null;
+			baseUrls = null;
+			matcher = null;
+			topLevel = null;
+			status = null;
+			requestCount = 0;
+			leaks.clear();
+		}
+	}
+
+	/** A top-level URL, with the encodings it contains (found once for all requests from the page). */
+	private class TopLevelUrl {
+		/** The URL (or null). */
+		private final String url;
+
+		/** Flags for the recipient's encodings contained in the URL in any form (or null if none are). */
+		private final boolean[] matched;
+
+		/** Encodings of all users' email addresses found in the URL (or null if not yet looked up). */
+		private List<EncodingIndex.Match> indexed;
+
+		/** Constructor. */
+		private TopLevelUrl(String url, EncodingMatcher matcher) {
+			this.url = url;
+			this.matched = isEmpty() ? null : matcher.matchAnyForm(url);
 		}
 
-		return "";
+		/** Returns whether the URL is missing. */
+		private boolean isEmpty() { return url == null || url.isEmpty(); }
+
+		/** Returns whether the URL contains the recipient's i-th encoding (see {@link EncodingMatcher#matchAnyForm(String)}). */
+		private boolean contains(int i) { return matched != null && matched[i]; }
+
+		/** Returns whether the URL contains the indexed value, or a URL-encoded or decoded form of it. */
+		private boolean contains(EncodingIndex.Match m) {
+			if (isEmpty())
+				return false;
+			if (url.contains(m.value))
+				return true;
+			if (indexed == null)
+				indexed = db.getEncodingIndex().find(url);
+			for (EncodingIndex.Match other : indexed) {
+				if (other.userId == m.userId &&
+				    (DecodingScanner.decodesTo(m.value, other.value, DecodingScanner.FORM) ||
+				     DecodingScanner.decodesTo(other.value, m.value, DecodingScanner.FORM)))
+					return true;
+			}
+			return false;
+		}
 	}
 
-	/** Finds leaked email addresses in the given data. */
+	/** Finds leaked email addresses in the given data, and adds them to the list. */
 	private void findLeakedEmailAddress(
 		String url,
-		String topLevelUrl,
+		TopLevelUrl topLevel,
 		String referrer,
 		String postBody,
-		List<HashChecker.NamedValue<String>> encodings,
+		EncodingMatcher matcher,
 		int recipientId,
 		String senderDomain,
-		String senderAddress
-	) throws SQLException {
-		for (HashChecker.NamedValue<String> enc : encodings) {
-			String type;
-			boolean isIntentional;
-			if (postBody != null && postBody.contains(enc.getValue())) {
-				// in POST data:
-				// > accidental if top-level URL leaks and occurs at least once,
-				//   but intentional if the leaked email address occurs more
-				//   frequently than the top-level URL (x number of occurrences)
-				type = "link-post";
-				if (!urlContainsString(topLevelUrl, enc.getValue()))
-					isIntentional = true;
-				else
-					isIntentional = isValueMoreFrequentThanUrlsInString(enc.getValue(), topLevelUrl, postBody);
-			} else if (url.contains(enc.getValue())) {
-				// in request URL:
-				// > intentional if the leak is NOT in the query parameters
-				// > accidental if top level URL leaks and occurs at least once,
-				//   but intentional if the leaked email address occurs more
-				//   frequently than the top-level URL
-				type = "link-request";
-				if (!urlContainsString(topLevelUrl, enc.getValue()))
-					isIntentional = true;
-				else {
-					try {
-						URL u = new URL(url);
-						if (u.getQuery() == null ||  // no query params
-						    !u.getQuery().contains(enc.getValue()) ||  // not in query params
-						    url.replace(u.getQuery(), "").contains(enc.getValue()))  // in non-query section
-							isIntentional = true;
-						else {
-							// NOTE:
-							// there's no point in parsing the parameters separately,
-							// because many scripts just embed the page URL as a query parameter
-							// without URL encoding it (so we can't tell which parameters
-							// belong to which URL)
-							isIntentional = isValueMoreFrequentThanUrlsInString(enc.getValue(), topLevelUrl, u.getQuery());
-						}
-					} catch (MalformedURLException e) {
-						isIntentional = true;  // invalid URL?
-					}
-				}
-			} else if (referrer != null && referrer.contains(enc.getValue())) {
-				// in Referer header:
-				// > assume accidental (we can't ever infer this was intentional)
-				type = "link-referrer";
-				isIntentional = false;
-			} else
-				continue;
-
-			db.addLeakedEmailAddress(
-				url, type, enc.getName(), true, isIntentional,
-				senderDomain, senderAddress, recipientId
-			);
+		String senderAddress,
+		List<LeakRecord> leaks
+	) {
+		// scan each field (and its decoded forms) once for all of the recipient's encodings
+		List<HashChecker.NamedValue<String>> encodings = matcher.getEncodings();
+		int[][] postBodyEnds = new int[encodings.size()][], urlEnds = new int[encodings.size()][];
+		String[] inPostBody = matcher.matchDecoded(postBody, postBodyEnds);
+		String[] inUrl = matcher.matchDecoded(url, urlEnds);
+		String[] inReferrer = matcher.matchDecoded(referrer);
+		if (inPostBody != null || inUrl != null || inReferrer != null) {
+			for (int i = 0, n = encodings.size(); i < n; i++) {
+				if (inPostBody != null && inPostBody[i] != null)
+					recordLeak(LeakLocation.POST, url, topLevel, postBody, postBodyEnds[i], topLevel.contains(i), inPostBody[i], recipientId, senderDomain, senderAddress, leaks);
+				else if (inUrl != null && inUrl[i] != null)
+					recordLeak(LeakLocation.REQUEST, url, topLevel, url, urlEnds[i], topLevel.contains(i), inUrl[i], recipientId, senderDomain, senderAddress, leaks);
+				else if (inReferrer != null && inReferrer[i] != null)
+					recordLeak(LeakLocation.REFERRER, url, topLevel, referrer, null, false, inReferrer[i], recipientId, senderDomain, senderAddress, leaks);
+			}
+		}
+
+		// look up encodings of other users' email addresses (found as-is)
+		EncodingIndex index = db.getEncodingIndex();
+		Set<String> found = new HashSet<String>();
+		for (EncodingIndex.Match m : index.find(postBody)) {
+			if (m.userId != recipientId && found.add(m.userId + ":" + m.encoding))
+				recordLeak(LeakLocation.POST, url, topLevel, postBody, getEnds(postBody, m.value), topLevel.contains(m), m.encoding, m.userId, senderDomain, senderAddress, leaks);
+		}
+		for (EncodingIndex.Match m : index.find(url)) {
+			if (m.userId != recipientId && found.add(m.userId + ":" + m.encoding))
+				recordLeak(LeakLocation.REQUEST, url, topLevel, url, getEnds(url, m.value), topLevel.contains(m), m.encoding, m.userId, senderDomain, senderAddress, leaks);
+		}
+		for (EncodingIndex.Match m : index.find(referrer)) {
+			if (m.userId != recipientId && found.add(m.userId + ":" + m.encoding))
+				recordLeak(LeakLocation.REFERRER, url, topLevel, referrer, null, false, m.encoding, m.userId, senderDomain, senderAddress, leaks);
 		}
 	}
 
-	/** Returns whether the URL contains the given string. */
-	private boolean urlContainsString(String url, String s) {
-		if (url == null || url.isEmpty())
-			return false;
+	/** Locations of a leaked email address within a request. */
+	private enum LeakLocation { POST, REQUEST, REFERRER }
 
-		if (url.contains(s))
-			return true;
-		try {
-			// try URL encoding/decoding on the URL
-			if (URLEncoder.encode(url, "UTF-8").contains(s) ||
-			    URLDecoder.decode(url, "UTF-8").contains(s))
-				return true;
-		} catch (Exception e) {}
+	/**
+	 * Classifies a leaked email address found in a request, and adds it to the list.
+	 * @param text the text it was found in (the POST body, URL, or referrer)
+	 * @param ends the end offsets of its occurrences in the text (in the decoded form it was found in)
+	 * @param inTopLevelUrl whether the top-level URL contains it
+	 */
+	private void recordLeak(
+		LeakLocation location,
+		String url,
+		TopLevelUrl topLevel,
+		String text,
+		int[] ends,
+		boolean inTopLevelUrl,
+		String encoding,
+		int recipientId,
+		String senderDomain,
+		String senderAddress,
+		List<LeakRecord> leaks
+	) {
+		String type;
+		boolean isIntentional;
+		switch (location) {
+		case POST:
+			// in POST data:
+			// > accidental if top-level URL leaks and occurs at least once,
+			//   but intentional if the leaked email address occurs more
+			//   frequently than the top-level URL (x number of occurrences)
+			type = "link-post";
+			if (!inTopLevelUrl)
+				isIntentional = true;
+			else
+				isIntentional = isValueMoreFrequentThanUrlsInString(ends, topLevel, text, 0, text.length());
+			break;
+		case REQUEST:
+			// in request URL:
+			// > intentional if the leak is NOT in the query parameters
+			// > accidental if top level URL leaks and occurs at least once,
+			//   but intentional if the leaked email address occurs more
+			//   frequently than the top-level URL
+			type = "link-request";
+			if (!inTopLevelUrl)
+				isIntentional = true;
+			else {
+				try {
+					URL u = new URL(url);
+					String query = u.getQuery();
+					int queryStart = (query == null) ? -1 : url.indexOf('?') + 1;
+					int queryEnd = (query == null) ? -1 : queryStart + query.length();
+					boolean inQuery = false, outsideQuery = false;
+					for (int end : ends) {
+						if (end > queryStart && end <= queryEnd)
+							inQuery = true;
+						else
+							outsideQuery = true;
+					}
+					if (query == null ||  // no query params
+					    !inQuery ||  // not in query params
+					    outsideQuery)  // in non-query section
+						isIntentional = true;
+					else {
+						// NOTE:
+						// there's no point in parsing the parameters separately,
+						// because many scripts just embed the page URL as a query parameter
+						// without URL encoding it (so we can't tell which parameters
+						// belong to which URL)
+						isIntentional = isValueMoreFrequentThanUrlsInString(ends, topLevel, text, queryStart, queryEnd);
+					}
+				} catch (MalformedURLException e) {
+					isIntentional = true;  // invalid URL?
+				}
+			}
+			break;
+		default:
+			// in Referer header:
+			// > assume accidental (we can't ever infer this was intentional)
+			type = "link-referrer";
+			isIntentional = false;
+			break;
+		}
 
-		return false;
+		leaks.add(new LeakRecord(
+			url, type, encoding, true, isIntentional,
+			senderDomain, senderAddress, recipientId
+		));
 	}
 
-	/** Returns whether the value is present in the given string more frequently than the URL. */
-	private boolean isValueMoreFrequentThanUrlsInString(String value, String url, String s) {
-		if (url == null || url.isEmpty())
+	/** Returns the end offsets of all occurrences of the value in the string. */
+	private static int[] getEnds(String s, String value) {
+		int[] ends = new int[0];
+		for (int i = s.indexOf(value); i != -1; i = s.indexOf(value, i + 1)) {
+			ends = Arrays.copyOf(ends, ends.length + 1);
+			ends[ends.length - 1] = i + value.length();
+		}
+		return ends;
+	}
+
+	/**
+	 * Returns whether the value is present in a region of the given string more
+	 * frequently than the URL, i.e. whether any of its occurrences in the region
+	 * (by end offset) is outside every occurrence of the URL.
+	 */
+	private boolean isValueMoreFrequentThanUrlsInString(int[] ends, TopLevelUrl topLevel, String s, int start, int end) {
+		if (topLevel.isEmpty())
 			return true;
 
-		String replaced = s.replace(url, "");
+		String urlEncoded = null;
 		try {
 			// try URL encoding on the URL
-			String urlEncoded = URLEncoder.encode(url, "UTF-8");
-			replaced = replaced.replace(urlEncoded, "");
+			urlEncoded = URLEncoder.encode(topLevel.url, "UTF-8");
 		} catch (Exception e) {}
 
-		return replaced.contains(value);
+		for (int e : ends) {
+			if (e > start && e <= end && !isWithin(s, topLevel.url, e) && (urlEncoded == null || !isWithin(s, urlEncoded, e)))
+				return true;
+		}
+		return false;
+	}
+
+	/** Returns whether an occurrence of the substring in the string contains the character ending at the given offset. */
+	private static boolean isWithin(String s, String sub, int end) {
+		int i = s.indexOf(sub, Math.max(0, end - sub.length()));
+		return i != -1 && i < end;
 	}
 
 	/** Returns a 400 Bad Request response. */